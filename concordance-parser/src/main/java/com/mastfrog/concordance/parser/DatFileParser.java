@@ -19,20 +19,13 @@
 package com.mastfrog.concordance.parser;
 
 import static com.mastfrog.concordance.parser.OptFileParser.EMPTY;
-import com.mastfrog.util.strings.Escaper;
-import com.mastfrog.util.strings.Strings;
 import java.io.IOException;
-import static java.nio.charset.StandardCharsets.US_ASCII;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.stream.Stream;
 
 /**
  *
@@ -41,104 +34,227 @@ import java.util.stream.Stream;
 public class DatFileParser {
 
     static final char DELIM = 'þ';
-    private final Path path;
-    private Predicate<String> filter = ignored -> true;
+    static final byte DC4 = 0x14;
+    static final long DEFAULT_CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final Predicate<DatLine> ACCEPT_ALL = ignored -> true;
+    private final ParseSource source;
+    private Predicate<? super DatLine> filter = ACCEPT_ALL;
+    private Function<? super DatHeadings, ? extends Predicate<? super DatLine>> columnFilter;
+    private ForkJoinPool pool;
+    private boolean ordered = true;
+    private long chunkSize = DEFAULT_CHUNK_SIZE;
 
     public DatFileParser(Path path) {
-        this.path = path;
+        this(ParseSource.of(path));
+    }
+
+    /**
+     * Create a parser for a file or stream; streams are parsed in a single
+     * forward pass.
+     *
+     * @param source The source
+     */
+    public DatFileParser(ParseSource source) {
+        this.source = source;
     }
 
     public DatFileParser withFilter(Predicate<String> pred) {
+        // Only decode the whole line if someone is going to look at it
+        this.filter = line -> pred.test(line.text());
+        return this;
+    }
+
+    /**
+     * Filter lines before they are split into fields or decoded; the filter is
+     * not applied to the heading line.
+     *
+     * @param pred A predicate which returns false to skip a line
+     * @return this
+     */
+    public DatFileParser withLineFilter(Predicate<? super DatLine> pred) {
         this.filter = pred;
         return this;
     }
 
-    private String[] split(String line) {
-        if (line.length() < 3) {
-            return EMPTY;
-        }
-        if (line.charAt(0) == '\ufeff') {
-            line = line.substring(1);
+    /**
+     * Filter lines using a predicate created from the headings of the file once
+     * they have been read, so it can refer to columns by index. The predicate
+     * is applied after any line filter.
+     *
+     * @param factory A function which creates a predicate for a set of headings
+     * @return this
+     */
+    public DatFileParser withColumnFilter(Function<? super DatHeadings, ? extends Predicate<? super DatLine>> factory) {
+        this.columnFilter = factory;
+        return this;
+    }
+
+    /**
+     * Only pass on records which match an expression.
+     *
+     * @param expression An expression
+     * @return this
+     */
+    public DatFileParser withExpression(FilterExpression expression) {
+        return withColumnFilter(expression::bind);
+    }
+
+    /**
+     * Parse the file in parallel, splitting it into chunks aligned on line
+     * boundaries which are parsed concurrently on the passed pool. If
+     * <code>ordered</code> is true, records are passed to the consumer on the
+     * calling thread in file order; if false, the consumer is called
+     * concurrently from pool threads as soon as each record is parsed, and must
+     * be thread-safe. Either way, each record is passed with its original
+     * record number. Sources which cannot be memory-mapped, such as entries in a
+     * zip file or streams, are always parsed sequentially.
+     *
+     * @param pool A pool
+     * @param ordered Whether records must be delivered in file order
+     * @return this
+     */
+    public DatFileParser withParallelism(ForkJoinPool pool, boolean ordered) {
+        this.pool = pool;
+        this.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * Set the approximate size in bytes of the chunks the file is split into
+     * when parsing in parallel.
+     *
+     * @param chunkSize The chunk size
+     * @return this
+     */
+    public DatFileParser withChunkSize(long chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Bad chunk size " + chunkSize);
         }
-        if (line.charAt(0) == '\u00fe') {
-            line = line.substring(1);
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Parse the file. The first non-empty line supplies the headings; the
+     * record number passed for each subsequent line is its index among the
+     * non-empty lines of the file, whether or not the filter excluded some of
+     * them.
+     *
+     * @param c A consumer
+     * @return The headings
+     * @throws IOException If something goes wrong
+     */
+    public String[] parse(DatParserConsumer c) throws IOException {
+        if (pool != null && source.isRandomAccess()) {
+            return new ParallelDatParser(source.path(), this::filterFor, pool, ordered, chunkSize).parse(c);
         }
-        if (line.charAt(0) == '\u00ff') {
-            line = line.substring(1);
+        RecordAdapter adapter = new RecordAdapter(c);
+        new DatTokenizer(source).tokenize(adapter);
+        return adapter.headings == null ? EMPTY : adapter.headings;
+    }
+
+    /**
+     * Read only the heading line of the file, without parsing any records;
+     * the result is the same as what {@link #parse(DatParserConsumer)} would
+     * return.
+     *
+     * @return The headings
+     * @throws IOException If something goes wrong
+     */
+    public String[] headings() throws IOException {
+        String[][] result = new String[1][];
+        new DatTokenizer(source).tokenize(line -> {
+            result[0] = headings(line);
+            return false;
+        });
+        return result[0] == null ? EMPTY : result[0];
+    }
+
+    Predicate<? super DatLine> filterFor(DatHeadings headings) {
+        if (columnFilter == null) {
+            return filter;
         }
-        if (line.charAt(0) == '\u00fe') {
-            line = line.substring(1);
+        Predicate<? super DatLine> columns = columnFilter.apply(headings);
+        if (filter == ACCEPT_ALL) {
+            return columns;
         }
-        if (line.length() < 3) {
-            return EMPTY;
+        Predicate<? super DatLine> lines = filter;
+        return line -> lines.test(line) && columns.test(line);
+    }
+
+    static boolean accepts(Predicate<? super DatLine> filter, DatLine line) {
+        return filter == ACCEPT_ALL || filter.test(line);
+    }
+
+    static String[] headings(DatLine line) {
+        int fields = line.fieldCount();
+        List<String> stuff = new ArrayList<>(fields);
+        for (int i = 0; i < fields; i++) {
+            String p = line.field(i).trim();
+            if (p.isEmpty() || p.indexOf(DC4) >= 0) {
+                continue;
+            }
+            stuff.add(p);
         }
-        while (line.charAt(line.length() - 1) == '\u00fe') {
-            line = line.substring(0, line.length() - 1);
+        return stuff.toArray(String[]::new);
+    }
+
+    /**
+     * Decode the non-empty fields of a line into a record, returning false if
+     * there are none.
+     */
+    static boolean fill(DatLine line, DatRecord record, ParseConsumer errors) {
+        record.clear(line.index());
+        int fields = line.fieldCount();
+        int columns = record.size();
+        for (int i = 0; i < fields; i++) {
+            if (line.isEmpty(i) || line.fieldContains(i, DC4)) {
+                continue;
+            }
+            if (i < columns) {
+                record.set(i, line.field(i));
+            } else {
+                errors.onError(line.text(), i, "Data contains a heading "
+                        + i + " but the header says there are only " + columns
+                        + " headings");
+            }
         }
-        if (line.length() < 3) {
-            return EMPTY;
+        return !record.isEmpty();
+    }
+
+    /**
+     * Adapts a DatParserConsumer to the tokenizer, decoding only the fields
+     * that are actually going to be passed on into a single reused record.
+     */
+    private final class RecordAdapter implements DatLineConsumer {
+
+        private final DatParserConsumer c;
+        private String[] headings;
+        private DatRecord record;
+        private Predicate<? super DatLine> filter;
+
+        RecordAdapter(DatParserConsumer c) {
+            this.c = c;
         }
-        List<String> result = new ArrayList<>(Strings.countOccurrences('\u0014', line));
-        String[] parts = line.split("\u00fe\u0014\u00fe");
-        result.addAll(Arrays.asList(parts));
 
-        return result.toArray(String[]::new);
-    }
+        @Override
+        public boolean onError(String line, int index, String problem) {
+            return c.onError(line, index, problem);
+        }
 
-    public String[] parse(DatParserConsumer c) throws IOException {
-        int count = 0;
-        String[] headings = new String[0];
-        try ( Stream<String> str = Files.lines(path)) {
-            Iterator<String> it = str.iterator();
-            while (it.hasNext()) {
-                String line = it.next().trim();
-                if (!line.isEmpty()) {
-                    if (!filter.test(line)) {
-                        continue;
-                    }
-                    String[] parts = split(line);
-                    if (count == 0) {
-
-                        String rr = Strings.escapeControlCharactersAndQuotes(line);
-                        rr = Strings.escape(rr,
-                                Escaper.escapeUnencodableAndControlCharacters(US_ASCII));
-
-                        List<String> stuff = new ArrayList<>();
-                        for (String p : parts) {
-                            p = p.trim();
-                            if (p.isEmpty() || p.contains("")) {
-                                continue;
-                            }
-                            stuff.add(p);
-                        }
-                        headings = stuff.toArray(String[]::new);
-                    } else {
-                        Map<String, String> values = new TreeMap<>();
-                        for (int i = 0; i < parts.length; i++) {
-                            if (parts[i].isEmpty() || parts[i].contains("")) {
-                                continue;
-                            }
-                            if (i < headings.length) {
-                                values.put(headings[i], parts[i]);
-                            } else {
-                                String raw = Strings.escapeControlCharactersAndQuotes(line);
-                                raw = Strings.escape(raw,
-                                        Escaper.escapeUnencodableAndControlCharacters(US_ASCII));
-                                c.onError(line, i, "Data contains a heading "
-                                        + i + " but the header says there are only " + headings.length
-                                        + " headings");
-                            }
-                        }
-                        if (!values.isEmpty()) {
-                            if (!c.accept(count, values)) {
-                                break;
-                            }
-                        }
-                    }
-                    count++;
-                }
+        @Override
+        public boolean onLine(DatLine line) {
+            if (headings == null) {
+                headings = headings(line);
+                DatHeadings heads = new DatHeadings(headings);
+                record = new DatRecord(heads);
+                filter = filterFor(heads);
+                return true;
+            }
+            if (!accepts(filter, line)) {
+                return true;
             }
+            return !fill(line, record, c) || c.accept(line.index(), record);
         }
-        return headings;
     }
 }
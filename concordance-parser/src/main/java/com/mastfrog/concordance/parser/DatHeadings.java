@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The column headings of one .dat file, shared by every record parsed from it.
+ *
+ * @author Tim Boudreau
+ */
+public final class DatHeadings {
+
+    private final String[] names;
+    private final Map<String, Integer> indices;
+
+    public DatHeadings(String... names) {
+        this.names = names;
+        indices = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            // Same as a map built from a record - the last one wins
+            indices.put(names[i], i);
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String name(int column) {
+        return names[column];
+    }
+
+    /**
+     * Get the column index of a heading.
+     *
+     * @param name A heading
+     * @return The index or -1
+     */
+    public int indexOf(String name) {
+        Integer result = indices.get(name);
+        return result == null ? -1 : result;
+    }
+
+    public String[] toArray() {
+        return names.clone();
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(names);
+    }
+}
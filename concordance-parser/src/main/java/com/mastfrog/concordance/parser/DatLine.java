@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+
+/**
+ * A single line of a .dat file as raw bytes, with field boundaries located
+ * directly in the bytes. Nothing is decoded into a String until one of the
+ * accessors that returns a String is called. Instances are reused from line to
+ * line by the {@link DatTokenizer} that owns them.
+ *
+ * @author Tim Boudreau
+ */
+public final class DatLine {
+
+    private static final byte[] NONE = new byte[0];
+    private final Charset charset;
+    private final byte[] bom;
+    private final byte[] thorn;
+    private final byte[] yDiaeresis;
+    private final byte[] delimiter;
+    private ByteBuffer buffer;
+    private long base;
+    private int rawEnd;
+    private int start;
+    private int end;
+    private int index;
+    private boolean split;
+    private int fieldCount;
+    private int[] starts = new int[32];
+    private int[] ends = new int[32];
+    private byte[] scratch = new byte[512];
+
+    DatLine(Charset charset) {
+        this.charset = charset;
+        bom = bytes(charset, "\ufeff");
+        thorn = bytes(charset, "\u00fe");
+        yDiaeresis = bytes(charset, "\u00ff");
+        delimiter = bytes(charset, "\u00fe\u0014\u00fe");
+    }
+
+    private static byte[] bytes(Charset charset, String s) {
+        CharsetEncoder enc = charset.newEncoder();
+        if (!enc.canEncode(s)) {
+            return NONE;
+        }
+        return s.getBytes(charset);
+    }
+
+    DatLine reset(ByteBuffer buffer, long base, int start, int end, int index) {
+        this.base = base;
+        this.rawEnd = end;
+        while (start < end && (buffer.get(start) & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (buffer.get(end - 1) & 0xFF) <= ' ') {
+            end--;
+        }
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        this.index = index;
+        this.split = false;
+        this.fieldCount = 0;
+        return this;
+    }
+
+    /**
+     * The ordinal of this line among the non-empty lines of the file it came
+     * from; the heading line is line 0.
+     *
+     * @return The index
+     */
+    public int index() {
+        return index;
+    }
+
+    /**
+     * The offset in the file of the byte following this line's content,
+     * which is its line terminator if it has one.
+     *
+     * @return An offset into the file
+     */
+    long endOffset() {
+        return base + rawEnd;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int start() {
+        return start;
+    }
+
+    int end() {
+        return end;
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    /**
+     * The length of the line in bytes, after trimming leading and trailing
+     * whitespace.
+     *
+     * @return The length
+     */
+    public int length() {
+        return end - start;
+    }
+
+    public boolean isEmpty() {
+        return end == start;
+    }
+
+    public byte byteAt(int offset) {
+        if (offset < 0 || offset >= end - start) {
+            throw new IndexOutOfBoundsException(offset + " of " + (end - start));
+        }
+        return buffer.get(start + offset);
+    }
+
+    /**
+     * Decode the entire (trimmed) line as a string.
+     *
+     * @return The line
+     */
+    public String text() {
+        return decode(start, end);
+    }
+
+    public int fieldCount() {
+        ensureSplit();
+        return fieldCount;
+    }
+
+    public int fieldLength(int field) {
+        checkField(field);
+        return ends[field] - starts[field];
+    }
+
+    public boolean isEmpty(int field) {
+        return fieldLength(field) == 0;
+    }
+
+    public boolean fieldContains(int field, byte b) {
+        checkField(field);
+        for (int i = starts[field]; i < ends[field]; i++) {
+            if (buffer.get(i) == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determine if a field exists and has a value, using the same rules the
+     * parser uses to decide whether a field goes in a record - it must not be
+     * empty or contain a DC4.
+     *
+     * @param field A field index
+     * @return true if the field has a value
+     */
+    public boolean hasValue(int field) {
+        ensureSplit();
+        return field >= 0 && field < fieldCount && starts[field] != ends[field]
+                && !fieldContains(field, DatFileParser.DC4);
+    }
+
+    /**
+     * Compare a field with some bytes without decoding it.
+     *
+     * @param field A field index
+     * @param bytes Some bytes in this line's charset
+     * @return true if they are the same
+     */
+    public boolean fieldEquals(int field, byte[] bytes) {
+        checkField(field);
+        return ends[field] - starts[field] == bytes.length
+                && matches(starts[field], ends[field], bytes);
+    }
+
+    /**
+     * Determine if a field contains some bytes, without decoding it.
+     *
+     * @param field A field index
+     * @param bytes Some bytes in this line's charset
+     * @return true if they occur in the field
+     */
+    public boolean fieldContains(int field, byte[] bytes) {
+        checkField(field);
+        if (bytes.length == 0) {
+            return true;
+        }
+        int last = ends[field] - bytes.length;
+        for (int i = starts[field]; i <= last; i++) {
+            if (buffer.get(i) == bytes[0] && matches(i, ends[field], bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode one field as a string.
+     *
+     * @param field The field index
+     * @return A string
+     */
+    public String field(int field) {
+        checkField(field);
+        return decode(starts[field], ends[field]);
+    }
+
+    private void checkField(int field) {
+        ensureSplit();
+        if (field < 0 || field >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + field + " of " + fieldCount);
+        }
+    }
+
+    private String decode(int from, int to) {
+        int len = to - from;
+        if (len == 0) {
+            return "";
+        }
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, len, charset);
+        }
+        if (scratch.length < len) {
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        }
+        buffer.position(from);
+        buffer.get(scratch, 0, len);
+        return new String(scratch, 0, len, charset);
+    }
+
+    private boolean matches(int at, int limit, byte[] seq) {
+        if (seq.length == 0 || at + seq.length > limit) {
+            return false;
+        }
+        for (int i = 0; i < seq.length; i++) {
+            if (buffer.get(at + i) != seq[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skip(int at, int limit, byte[] seq) {
+        return matches(at, limit, seq) ? at + seq.length : at;
+    }
+
+    private void ensureSplit() {
+        if (split) {
+            return;
+        }
+        split = true;
+        fieldCount = 0;
+        // Same rules as the original String-based splitting:  strip the
+        // byte-order mark and the leading and trailing thorns, then split on
+        // thorn-DC4-thorn, dropping trailing empty fields
+        int s = skip(start, end, bom);
+        s = skip(s, end, thorn);
+        s = skip(s, end, yDiaeresis);
+        s = skip(s, end, thorn);
+        int e = end;
+        while (thorn.length > 0 && e - thorn.length >= s && matches(e - thorn.length, e, thorn)) {
+            e -= thorn.length;
+        }
+        if (e - s < 3) {
+            return;
+        }
+        byte first = delimiter.length == 0 ? 0 : delimiter[0];
+        int fieldStart = s;
+        int last = e - delimiter.length;
+        for (int i = s; i <= last && delimiter.length > 0;) {
+            if (buffer.get(i) == first && matches(i, e, delimiter)) {
+                addField(fieldStart, i);
+                i += delimiter.length;
+                fieldStart = i;
+            } else {
+                i++;
+            }
+        }
+        addField(fieldStart, e);
+        while (fieldCount > 0 && starts[fieldCount - 1] == ends[fieldCount - 1]) {
+            fieldCount--;
+        }
+    }
+
+    private void addField(int from, int to) {
+        if (fieldCount == starts.length) {
+            int[] newStarts = new int[starts.length * 2];
+            int[] newEnds = new int[ends.length * 2];
+            System.arraycopy(starts, 0, newStarts, 0, fieldCount);
+            System.arraycopy(ends, 0, newEnds, 0, fieldCount);
+            starts = newStarts;
+            ends = newEnds;
+        }
+        starts[fieldCount] = from;
+        ends[fieldCount++] = to;
+    }
+
+    @Override
+    public String toString() {
+        return index + ": " + text();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.parser;
+
+/**
+ * Receives raw, undecoded lines from a {@link DatTokenizer}.
+ *
+ * @author Tim Boudreau
+ */
+public interface DatLineConsumer extends ParseConsumer {
+
+    /**
+     * Called once for each non-empty line. The passed line is a flyweight
+     * which is reused for the next line, and is only valid for the duration of
+     * this call.
+     *
+     * @param line The line
+     * @return true to continue parsing, false to stop
+     */
+    boolean onLine(DatLine line);
+}
@@ -27,4 +27,18 @@ import java.util.Map;
 public interface DatParserConsumer extends ParseConsumer {
 
     boolean accept(int item, Map<String, String> entry);
+
+    /**
+     * Accept a record without a map being allocated for it. The record is
+     * reused for the next line, so it is only valid for the duration of this
+     * call. The default implementation copies it into a map and calls
+     * <code>accept(int, Map)</code>.
+     *
+     * @param item The record number
+     * @param record The record, which will have at least one value
+     * @return true to continue parsing
+     */
+    default boolean accept(int item, DatRecord record) {
+        return accept(item, record.toMap());
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.parser;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A flyweight record from a .dat file - an array of values indexed by column,
+ * against a set of headings shared by the whole file. Columns with no value
+ * are null. The parser reuses a single instance for every line, so a record is
+ * only valid for the duration of the call it is passed to.
+ *
+ * @author Tim Boudreau
+ */
+public final class DatRecord {
+
+    private final DatHeadings headings;
+    private final String[] values;
+    private int index;
+    private int count;
+
+    DatRecord(DatHeadings headings) {
+        this.headings = headings;
+        this.values = new String[headings.size()];
+    }
+
+    public DatHeadings headings() {
+        return headings;
+    }
+
+    /**
+     * The index of the line this record came from among the non-empty lines of
+     * its file.
+     *
+     * @return The index
+     */
+    public int index() {
+        return index;
+    }
+
+    /**
+     * The number of columns.
+     *
+     * @return The number of columns
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * The number of columns that have a value.
+     *
+     * @return The count
+     */
+    public int valueCount() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public String get(int column) {
+        return values[column];
+    }
+
+    public String get(String heading) {
+        int ix = headings.indexOf(heading);
+        return ix < 0 ? null : values[ix];
+    }
+
+    public void forEach(BiConsumer<? super String, ? super String> c) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                c.accept(headings.name(i), values[i]);
+            }
+        }
+    }
+
+    /**
+     * Copy this record into a new map.
+     *
+     * @return A map
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> result = new TreeMap<>();
+        forEach(result::put);
+        return result;
+    }
+
+    DatRecord clear(int index) {
+        this.index = index;
+        if (count > 0) {
+            Arrays.fill(values, null);
+            count = 0;
+        }
+        return this;
+    }
+
+    void set(int column, String value) {
+        if (values[column] == null) {
+            count++;
+        }
+        values[column] = value;
+    }
+
+    String[] copyValues() {
+        return values.clone();
+    }
+
+    DatRecord load(int index, String[] vals) {
+        clear(index);
+        for (int i = 0; i < vals.length; i++) {
+            if (vals[i] != null) {
+                set(i, vals[i]);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return index + ": " + toMap();
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Tokenizes a .dat file by memory-mapping it and locating line boundaries and
+ * field delimiters directly in the bytes, so no data is decoded unless a
+ * consumer asks for it. The file is mapped in windows so files larger than 2Gb
+ * can be handled; a line which spans a window boundary causes the next window
+ * to start at the beginning of that line.
+ * <p>
+ * Any CR or LF ends a line, and blank lines are skipped, which is the same
+ * thing <code>Files.lines()</code> + <code>trim()</code> does.
+ * </p>
+ * <p>
+ * Sources which cannot be mapped, such as entries in a zip filesystem or
+ * streams, are read in a single forward pass into a heap buffer instead.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class DatTokenizer {
+
+    static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE - 8;
+    private final ParseSource source;
+    private final Charset charset;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+    public DatTokenizer(Path path) {
+        this(path, UTF_8);
+    }
+
+    public DatTokenizer(Path path, Charset charset) {
+        this(ParseSource.of(path), charset);
+    }
+
+    public DatTokenizer(ParseSource source) {
+        this(source, UTF_8);
+    }
+
+    public DatTokenizer(ParseSource source, Charset charset) {
+        this.source = source;
+        this.charset = charset;
+    }
+
+    public Path path() {
+        return source.path();
+    }
+
+    public ParseSource source() {
+        return source;
+    }
+
+    /**
+     * Set the number of bytes mapped at a time.
+     *
+     * @param windowSize The window size
+     * @return this
+     */
+    public DatTokenizer windowSize(int windowSize) {
+        if (windowSize < 16) {
+            throw new IllegalArgumentException("Window too small: " + windowSize);
+        }
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    /**
+     * Tokenize the file, passing each non-empty line to the consumer.
+     *
+     * @param c A consumer
+     * @return The number of lines passed to the consumer
+     * @throws IOException If something goes wrong
+     */
+    public int tokenize(DatLineConsumer c) throws IOException {
+        if (!source.isRandomAccess()) {
+            // e.g. an entry in a zip file or a pipe - read it as it arrives
+            try ( ReadableByteChannel channel = source.open()) {
+                return tokenize(channel, c);
+            }
+        }
+        try ( FileChannel channel = FileChannel.open(source.path(), READ)) {
+            return tokenize(channel, 0, channel.size(), 0, c);
+        }
+    }
+
+    /**
+     * Determine if a path is a file on the default filesystem which can be
+     * memory mapped, as opposed to, say, an entry in a zip filesystem.
+     *
+     * @param path A path
+     * @return true if it can be mapped
+     */
+    public static boolean isMappable(Path path) {
+        return path.getFileSystem() == FileSystems.getDefault();
+    }
+
+    /**
+     * Tokenize a stream of bytes in a single forward pass, reading into a
+     * buffer of the window size (or larger, if a line does not fit in it).
+     *
+     * @param channel A channel
+     * @param c A consumer
+     * @return The number of lines passed to the consumer
+     * @throws IOException If something goes wrong
+     */
+    public int tokenize(ReadableByteChannel channel, DatLineConsumer c) throws IOException {
+        DatLine line = new DatLine(charset);
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(windowSize, STREAM_BUFFER_SIZE));
+        int index = 0;
+        long base = 0;
+        int scanFrom = 0;
+        for (boolean eof = false; !eof;) {
+            eof = channel.read(buf) < 0;
+            int limit = buf.position();
+            int lineStart = 0;
+            for (int i = scanFrom; i < limit; i++) {
+                byte b = buf.get(i);
+                if (b == '\n' || b == '\r') {
+                    if (i > lineStart) {
+                        line.reset(buf, base, lineStart, i, index);
+                        if (!line.isEmpty()) {
+                            index++;
+                            if (!c.onLine(line)) {
+                                return index;
+                            }
+                        }
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            if (eof) {
+                if (lineStart < limit) {
+                    line.reset(buf, base, lineStart, limit, index);
+                    if (!line.isEmpty()) {
+                        index++;
+                        c.onLine(line);
+                    }
+                }
+            } else if (lineStart == 0 && limit == buf.capacity()) {
+                // A single line larger than the buffer
+                if (buf.capacity() == MAX_WINDOW_SIZE) {
+                    throw new IOException("Line at " + base + " in " + source
+                            + " is longer than " + MAX_WINDOW_SIZE + " bytes");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(MAX_WINDOW_SIZE, buf.capacity() * 2L));
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+                scanFrom = limit;
+            } else {
+                buf.limit(limit).position(lineStart);
+                buf.compact();
+                base += lineStart;
+                scanFrom = limit - lineStart;
+            }
+        }
+        return index;
+    }
+
+    int tokenize(FileChannel channel, long from, long to, int firstIndex,
+            DatLineConsumer c) throws IOException {
+        DatLine line = new DatLine(charset);
+        int index = firstIndex;
+        int window = windowSize;
+        long pos = from;
+        while (pos < to) {
+            long size = Math.min(window, to - pos);
+            boolean last = pos + size >= to;
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+            int limit = (int) size;
+            int lineStart = 0;
+            for (int i = 0; i < limit; i++) {
+                byte b = buf.get(i);
+                if (b == '\n' || b == '\r') {
+                    if (i > lineStart) {
+                        line.reset(buf, pos, lineStart, i, index);
+                        if (!line.isEmpty()) {
+                            index++;
+                            if (!c.onLine(line)) {
+                                return index - firstIndex;
+                            }
+                        }
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            if (last) {
+                if (lineStart < limit) {
+                    line.reset(buf, pos, lineStart, limit, index);
+                    if (!line.isEmpty()) {
+                        index++;
+                        c.onLine(line);
+                    }
+                }
+                break;
+            } else if (lineStart == 0) {
+                // A single line larger than the window
+                if (window == MAX_WINDOW_SIZE) {
+                    throw new IOException("Line at " + pos + " in " + source
+                            + " is longer than " + MAX_WINDOW_SIZE + " bytes");
+                }
+                window = (int) Math.min(MAX_WINDOW_SIZE, window * 2L);
+            } else {
+                pos += lineStart;
+            }
+        }
+        return index - firstIndex;
+    }
+
+    /**
+     * Count the lines that would be passed to a consumer by a call to
+     * tokenize() over the same range, without splitting or decoding anything.
+     */
+    int countLines(FileChannel channel, long from, long to) throws IOException {
+        int count = 0;
+        long pos = from;
+        boolean content = false;
+        while (pos < to) {
+            long size = Math.min(windowSize, to - pos);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+            int limit = (int) size;
+            for (int i = 0; i < limit; i++) {
+                int b = buf.get(i) & 0xFF;
+                if (b == '\n' || b == '\r') {
+                    if (content) {
+                        count++;
+                        content = false;
+                    }
+                } else if (b > ' ') {
+                    content = true;
+                }
+            }
+            pos += size;
+        }
+        return content ? count + 1 : count;
+    }
+
+    /**
+     * Find the offset of the first byte following the first line terminator at
+     * or after the passed position, or the limit if there is none. Any offset
+     * returned by this method is a safe place to start tokenizing.
+     */
+    long nextLineStart(FileChannel channel, long pos, long limit) throws IOException {
+        int window = 64 * 1024;
+        while (pos < limit) {
+            long size = Math.min(window, limit - pos);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+            int max = (int) size;
+            for (int i = 0; i < max; i++) {
+                byte b = buf.get(i);
+                if (b == '\n' || b == '\r') {
+                    return pos + i + 1;
+                }
+            }
+            pos += size;
+            window = (int) Math.min(windowSize, window * 2L);
+        }
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return "DatTokenizer(" + source + ")";
+    }
+}
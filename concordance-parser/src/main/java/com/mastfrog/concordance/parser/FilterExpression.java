@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.parser;
+
+import java.nio.charset.Charset;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A small predicate language over the columns of a record, such as
+ * <pre>
+ * Custodian = "Smith" AND NOT FileExt IN (tmp, db)
+ * </pre>
+ * Supported are <code>=</code>, <code>!=</code>, <code>CONTAINS</code> and
+ * <code>IN (...)</code>, combined with <code>AND</code>, <code>OR</code>,
+ * <code>NOT</code> and parentheses. Keywords are case-insensitive; values are
+ * case-sensitive and may be bare words or double-quoted; column names which
+ * contain spaces or punctuation can be written in square brackets. A column
+ * with no value in a record, or which does not exist in a file, never equals,
+ * contains or is in anything, and <code>Column = ""</code> tests for that.
+ * <p>
+ * An expression is parsed once, and bound to the headings of each file it is
+ * applied to, producing a predicate over tokenized lines which compares the
+ * raw bytes of only the fields it references, short-circuiting, so nothing is
+ * decoded to evaluate it.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class FilterExpression {
+
+    private final String text;
+    private final Node root;
+
+    private FilterExpression(String text, Node root) {
+        this.text = text;
+        this.root = root;
+    }
+
+    /**
+     * Parse an expression.
+     *
+     * @param text The expression
+     * @return An expression
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public static FilterExpression parse(String text) {
+        ExpressionParser p = new ExpressionParser(text);
+        Node root = p.or();
+        if (p.peek() != null) {
+            throw p.error("Unexpected '" + p.peek().text + "'");
+        }
+        return new FilterExpression(text, root);
+    }
+
+    /**
+     * The names of the columns this expression references.
+     *
+     * @return A set of column names
+     */
+    public Set<String> columns() {
+        Set<String> result = new LinkedHashSet<>();
+        root.columns(result);
+        return Collections.unmodifiableSet(result);
+    }
+
+    public Predicate<DatLine> bind(DatHeadings headings) {
+        return bind(headings, UTF_8);
+    }
+
+    /**
+     * Resolve the columns this expression references against the headings of
+     * a file.
+     *
+     * @param headings The headings
+     * @param charset The charset lines will be encoded in
+     * @return A predicate
+     */
+    public Predicate<DatLine> bind(DatHeadings headings, Charset charset) {
+        return root.bind(headings, charset);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private interface Node {
+
+        Predicate<DatLine> bind(DatHeadings headings, Charset charset);
+
+        void columns(Set<? super String> into);
+    }
+
+    private static final class And implements Node {
+
+        private final Node left;
+        private final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Predicate<DatLine> bind(DatHeadings headings, Charset charset) {
+            Predicate<DatLine> l = left.bind(headings, charset);
+            Predicate<DatLine> r = right.bind(headings, charset);
+            return line -> l.test(line) && r.test(line);
+        }
+
+        @Override
+        public void columns(Set<? super String> into) {
+            left.columns(into);
+            right.columns(into);
+        }
+    }
+
+    private static final class Or implements Node {
+
+        private final Node left;
+        private final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Predicate<DatLine> bind(DatHeadings headings, Charset charset) {
+            Predicate<DatLine> l = left.bind(headings, charset);
+            Predicate<DatLine> r = right.bind(headings, charset);
+            return line -> l.test(line) || r.test(line);
+        }
+
+        @Override
+        public void columns(Set<? super String> into) {
+            left.columns(into);
+            right.columns(into);
+        }
+    }
+
+    private static final class Not implements Node {
+
+        private final Node delegate;
+
+        Not(Node delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Predicate<DatLine> bind(DatHeadings headings, Charset charset) {
+            return delegate.bind(headings, charset).negate();
+        }
+
+        @Override
+        public void columns(Set<? super String> into) {
+            delegate.columns(into);
+        }
+    }
+
+    private static final class Comparison implements Node {
+
+        private final String column;
+        private final String op;
+        private final List<String> values;
+
+        Comparison(String column, String op, List<String> values) {
+            this.column = column;
+            this.op = op;
+            this.values = values;
+        }
+
+        @Override
+        public void columns(Set<? super String> into) {
+            into.add(column);
+        }
+
+        @Override
+        public Predicate<DatLine> bind(DatHeadings headings, Charset charset) {
+            int ix = headings.indexOf(column);
+            byte[][] bytes = new byte[values.size()][];
+            boolean empty = false;
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = values.get(i).getBytes(charset);
+                empty |= bytes[i].length == 0;
+            }
+            Predicate<DatLine> absent = line -> !line.hasValue(ix);
+            switch (op) {
+                case "=":
+                    if (empty) {
+                        return absent;
+                    }
+                    return line -> line.hasValue(ix) && line.fieldEquals(ix, bytes[0]);
+                case "!=":
+                    if (empty) {
+                        return absent.negate();
+                    }
+                    return line -> !line.hasValue(ix) || !line.fieldEquals(ix, bytes[0]);
+                case "CONTAINS":
+                    return line -> line.hasValue(ix) && line.fieldContains(ix, bytes[0]);
+                case "IN":
+                    return line -> {
+                        if (!line.hasValue(ix)) {
+                            return false;
+                        }
+                        for (byte[] b : bytes) {
+                            if (line.fieldEquals(ix, b)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    };
+                default:
+                    throw new AssertionError(op);
+            }
+        }
+    }
+
+    private enum Kind {
+        WORD,
+        STRING,
+        SYMBOL
+    }
+
+    private static final class Token {
+
+        final String text;
+        final Kind kind;
+        final int position;
+
+        Token(String text, Kind kind, int position) {
+            this.text = text;
+            this.kind = kind;
+            this.position = position;
+        }
+
+        boolean is(String keyword) {
+            return kind == Kind.WORD && keyword.equalsIgnoreCase(text);
+        }
+
+        boolean isSymbol(String sym) {
+            return kind == Kind.SYMBOL && sym.equals(text);
+        }
+    }
+
+    private static final class ExpressionParser {
+
+        private final String text;
+        private final List<Token> tokens = new ArrayList<>();
+        private int cursor;
+
+        ExpressionParser(String text) {
+            this.text = text;
+            lex();
+        }
+
+        IllegalArgumentException error(String msg) {
+            int pos = cursor < tokens.size() ? tokens.get(cursor).position : text.length();
+            return new IllegalArgumentException(msg + " at " + pos + " in '" + text + "'");
+        }
+
+        private void lex() {
+            int len = text.length();
+            for (int i = 0; i < len;) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')' || c == ',' || c == '=') {
+                    tokens.add(new Token(String.valueOf(c), Kind.SYMBOL, i++));
+                } else if (c == '!' && i + 1 < len && text.charAt(i + 1) == '=') {
+                    tokens.add(new Token("!=", Kind.SYMBOL, i));
+                    i += 2;
+                } else if (c == '"') {
+                    StringBuilder sb = new StringBuilder();
+                    int start = i++;
+                    for (;; i++) {
+                        if (i >= len) {
+                            throw new IllegalArgumentException("Unterminated string at "
+                                    + start + " in '" + text + "'");
+                        }
+                        char ch = text.charAt(i);
+                        if (ch == '\\' && i + 1 < len) {
+                            sb.append(text.charAt(++i));
+                        } else if (ch == '"') {
+                            i++;
+                            break;
+                        } else {
+                            sb.append(ch);
+                        }
+                    }
+                    // Quoted strings are never keywords
+                    tokens.add(new Token(sb.toString(), Kind.STRING, start));
+                } else if (c == '[') {
+                    int end = text.indexOf(']', i);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unterminated column name at "
+                                + i + " in '" + text + "'");
+                    }
+                    tokens.add(new Token(text.substring(i + 1, end), Kind.STRING, i));
+                    i = end + 1;
+                } else {
+                    int start = i;
+                    while (i < len && !Character.isWhitespace(text.charAt(i))
+                            && "()=,!\"[".indexOf(text.charAt(i)) < 0) {
+                        i++;
+                    }
+                    if (i == start) {
+                        throw new IllegalArgumentException("Unexpected '" + c + "' at "
+                                + i + " in '" + text + "'");
+                    }
+                    tokens.add(new Token(text.substring(start, i), Kind.WORD, start));
+                }
+            }
+        }
+
+        Token peek() {
+            return cursor < tokens.size() ? tokens.get(cursor) : null;
+        }
+
+        Token next() {
+            Token result = peek();
+            if (result == null) {
+                throw error("Unexpected end of expression");
+            }
+            cursor++;
+            return result;
+        }
+
+        private boolean isOperand(Token t) {
+            switch (t.kind) {
+                case STRING:
+                    return true;
+                case WORD:
+                    return !(t.is("AND") || t.is("OR") || t.is("NOT") || t.is("IN") || t.is("CONTAINS"));
+                default:
+                    return false;
+            }
+        }
+
+        Node or() {
+            Node result = and();
+            while (peek() != null && peek().is("OR")) {
+                next();
+                result = new Or(result, and());
+            }
+            return result;
+        }
+
+        Node and() {
+            Node result = unary();
+            while (peek() != null && peek().is("AND")) {
+                next();
+                result = new And(result, unary());
+            }
+            return result;
+        }
+
+        Node unary() {
+            Token t = peek();
+            if (t != null && t.is("NOT")) {
+                next();
+                return new Not(unary());
+            }
+            if (t != null && t.isSymbol("(")) {
+                next();
+                Node result = or();
+                expect(")");
+                return result;
+            }
+            return comparison();
+        }
+
+        private Node comparison() {
+            Token col = next();
+            if (!isOperand(col)) {
+                cursor--;
+                throw error("Expected a column name but got '" + col.text + "'");
+            }
+            Token op = next();
+            if (op.isSymbol("=") || op.isSymbol("!=")) {
+                return new Comparison(col.text, op.text, Collections.singletonList(value()));
+            } else if (op.is("CONTAINS")) {
+                return new Comparison(col.text, "CONTAINS", Collections.singletonList(value()));
+            } else if (op.is("IN")) {
+                expect("(");
+                List<String> values = new ArrayList<>();
+                values.add(value());
+                while (peek() != null && peek().isSymbol(",")) {
+                    next();
+                    values.add(value());
+                }
+                expect(")");
+                return new Comparison(col.text, "IN", values);
+            }
+            cursor--;
+            throw error("Expected =, !=, CONTAINS or IN after " + col.text
+                    + " but got '" + op.text + "'");
+        }
+
+        private String value() {
+            Token t = next();
+            if (!isOperand(t)) {
+                cursor--;
+                throw error("Expected a value but got '" + t.text + "'");
+            }
+            return t.text;
+        }
+
+        private void expect(String sym) {
+            Token t = next();
+            if (!t.isSymbol(sym)) {
+                cursor--;
+                throw error("Expected '" + sym + "' but got '" + t.text + "'");
+            }
+        }
+    }
+}
@@ -19,9 +19,24 @@
 package com.mastfrog.concordance.parser;
 
 import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public interface OptConsumer extends ParseConsumer {
 
     public boolean onEntry(String itemName, String volumeName, Path relativePath, String... parts);
 
+    /**
+     * Called by the parser with the relative path already in the form
+     * <code>Path.toString()</code> would produce, so consumers which only need
+     * the string can override this and never create a Path.
+     *
+     * @param itemName The item name
+     * @param volumeName The volume name
+     * @param relativePath The relative path, using the platform separator
+     * @param parts Any remaining fields
+     * @return true to continue parsing
+     */
+    default boolean onEntry(String itemName, String volumeName, String relativePath, String... parts) {
+        return onEntry(itemName, volumeName, Paths.get(relativePath), parts);
+    }
 }
@@ -19,12 +19,12 @@
 package com.mastfrog.concordance.parser;
 
 import com.mastfrog.util.collections.ArrayUtils;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.channels.Channels;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Iterator;
-import java.util.stream.Stream;
 
 /**
  *
@@ -32,30 +32,33 @@ import java.util.stream.Stream;
  */
 public class OptFileParser {
 
-    private final Path file;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private final ParseSource source;
 
     public OptFileParser(Path file) {
-        this.file = file;
+        this(ParseSource.of(file));
+    }
+
+    public OptFileParser(ParseSource source) {
+        this.source = source;
     }
 
     public static final String[] EMPTY = new String[0];
 
     public int parse(OptConsumer c) throws IOException {
         int count = 0;
-        try ( Stream<String> str = Files.lines(file)) {
-            Iterator<String> it = str.iterator();
-            while (it.hasNext()) {
-                String line = it.next().trim();
+        // Same line splitting and (strict) decoding as Files.lines(), but
+        // reading forward from a channel, so it works on streams too
+        try ( BufferedReader reader = new BufferedReader(
+                Channels.newReader(source.open(), UTF_8.newDecoder(), BUFFER_SIZE), BUFFER_SIZE)) {
+            for (String raw = reader.readLine(); raw != null; raw = reader.readLine()) {
+                String line = raw.trim();
                 if (!line.isEmpty()) {
                     String[] parts = line.split(",");
                     if (parts.length >= 3) {
                         String itemName = parts[0];
                         String volumeName = parts[1];
-                        String relPath = parts[2].replaceAll("\\\\", "/");
-                        if (relPath.startsWith("/")) {
-                            relPath = relPath.substring(1);
-                        }
-                        Path p = Paths.get(relPath);
+                        String relPath = relativePath(parts[2]);
                         String[] remainder;
                         if (parts.length > 0) {
                             remainder = ArrayUtils.extract(parts, 3, parts.length - 3);
@@ -63,7 +66,7 @@ public class OptFileParser {
                             remainder = EMPTY;
                         }
                         count++;
-                        if (!c.onEntry(itemName, volumeName, p, remainder)) {
+                        if (!c.onEntry(itemName, volumeName, relPath, remainder)) {
                             break;
                         }
                     } else {
@@ -74,4 +77,32 @@ public class OptFileParser {
         }
         return count;
     }
+
+    /**
+     * Convert a Windows-style path from an .opt file to a relative path using
+     * the platform separator, with empty elements removed, the same as
+     * <code>Paths.get()</code> would, but without a regex or a Path per line.
+     *
+     * @param raw The path from the file
+     * @return A relative path
+     */
+    static String relativePath(String raw) {
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '\\' || c == '/') {
+                // Leading and doubled separators vanish, and so will a trailing one
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != File.separatorChar) {
+                    sb.append(File.separatorChar);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        int len = sb.length();
+        if (len > 0 && sb.charAt(len - 1) == File.separatorChar) {
+            sb.setLength(len - 1);
+        }
+        return sb.toString();
+    }
 }
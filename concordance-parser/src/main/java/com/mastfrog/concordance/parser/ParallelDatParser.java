@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.parser;
+
+import static com.mastfrog.concordance.parser.OptFileParser.EMPTY;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Parses one .dat file on a fork-join pool, splitting it into chunks whose
+ * boundaries fall immediately after a line terminator.
+ * <p>
+ * In ordered mode, each chunk is parsed into a buffer of records, and the
+ * calling thread delivers the buffers in file order, keeping at most a couple
+ * of chunks per pool thread in flight so memory use stays bounded. In
+ * unordered mode the lines in each chunk are counted first, which is cheap
+ * since nothing is split or decoded, so every chunk knows the record number of
+ * its first line and workers can call the consumer directly.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class ParallelDatParser {
+
+    private final Path path;
+    private final Function<DatHeadings, Predicate<? super DatLine>> filters;
+    private Predicate<? super DatLine> filter;
+    private final ForkJoinPool pool;
+    private final boolean ordered;
+    private final long chunkSize;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    ParallelDatParser(Path path, Function<DatHeadings, Predicate<? super DatLine>> filters,
+            ForkJoinPool pool, boolean ordered, long chunkSize) {
+        this.path = path;
+        this.filters = filters;
+        this.pool = pool;
+        this.ordered = ordered;
+        this.chunkSize = chunkSize;
+    }
+
+    String[] parse(DatParserConsumer c) throws IOException {
+        DatTokenizer tok = new DatTokenizer(path);
+        try ( FileChannel channel = FileChannel.open(path, READ)) {
+            long size = channel.size();
+            String[][] headings = new String[1][];
+            long[] headerEnd = new long[1];
+            tok.tokenize(channel, 0, size, 0, line -> {
+                headings[0] = DatFileParser.headings(line);
+                headerEnd[0] = line.endOffset();
+                return false;
+            });
+            if (headings[0] == null) {
+                return EMPTY;
+            }
+            List<Long> bounds = new ArrayList<>();
+            bounds.add(headerEnd[0]);
+            for (long pos = headerEnd[0]; pos < size;) {
+                pos = tok.nextLineStart(channel, Math.min(size, pos + chunkSize), size);
+                bounds.add(pos);
+            }
+            DatHeadings heads = new DatHeadings(headings[0]);
+            filter = filters.apply(heads);
+            if (ordered) {
+                parseOrdered(tok, channel, bounds, heads, c);
+            } else {
+                parseUnordered(tok, channel, bounds, heads, c);
+            }
+            return headings[0];
+        }
+    }
+
+    private void parseOrdered(DatTokenizer tok, FileChannel channel, List<Long> bounds,
+            DatHeadings headings, DatParserConsumer c) throws IOException {
+        int maxInFlight = Math.max(2, pool.getParallelism() * 2);
+        ArrayDeque<ForkJoinTask<BufferedChunk>> inFlight = new ArrayDeque<>(maxInFlight);
+        int base = 1;
+        try {
+            for (int i = 0; i < bounds.size() - 1 && !stopped.get(); i++) {
+                long from = bounds.get(i);
+                long to = bounds.get(i + 1);
+                if (inFlight.size() >= maxInFlight) {
+                    base = join(inFlight.poll()).deliver(base, c);
+                }
+                inFlight.add(pool.submit(() -> {
+                    BufferedChunk chunk = new BufferedChunk(headings);
+                    chunk.lines = tok.tokenize(channel, from, to, 0, chunk);
+                    return chunk;
+                }));
+            }
+            while (!inFlight.isEmpty() && !stopped.get()) {
+                base = join(inFlight.poll()).deliver(base, c);
+            }
+        } finally {
+            for (ForkJoinTask<?> task : inFlight) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    private void parseUnordered(DatTokenizer tok, FileChannel channel, List<Long> bounds,
+            DatHeadings headings, DatParserConsumer c) throws IOException {
+        int chunks = bounds.size() - 1;
+        List<ForkJoinTask<Integer>> counts = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            long from = bounds.get(i);
+            long to = bounds.get(i + 1);
+            counts.add(pool.submit(() -> tok.countLines(channel, from, to)));
+        }
+        List<ForkJoinTask<Integer>> parses = new ArrayList<>(chunks);
+        int base = 1;
+        for (int i = 0; i < chunks; i++) {
+            long from = bounds.get(i);
+            long to = bounds.get(i + 1);
+            int first = base;
+            parses.add(pool.submit(() -> tok.tokenize(channel, from, to, first,
+                    new DirectChunk(headings, c))));
+            base += join(counts.get(i));
+        }
+        for (ForkJoinTask<Integer> parse : parses) {
+            join(parse);
+        }
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (RuntimeException ex) {
+            for (Throwable t = ex; t != null; t = t.getCause()) {
+                if (t instanceof IOException) {
+                    throw (IOException) t;
+                }
+            }
+            throw ex;
+        }
+    }
+
+    private final class DirectChunk implements DatLineConsumer {
+
+        private final DatRecord record;
+        private final DatParserConsumer c;
+
+        DirectChunk(DatHeadings headings, DatParserConsumer c) {
+            this.record = new DatRecord(headings);
+            this.c = c;
+        }
+
+        @Override
+        public boolean onLine(DatLine line) {
+            if (stopped.get()) {
+                return false;
+            }
+            if (!DatFileParser.accepts(filter, line)) {
+                return true;
+            }
+            if (DatFileParser.fill(line, record, c) && !c.accept(line.index(), record)) {
+                stopped.set(true);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private final class BufferedChunk implements DatLineConsumer {
+
+        private final DatRecord record;
+        private final List<Object> items = new ArrayList<>();
+        int lines;
+
+        BufferedChunk(DatHeadings headings) {
+            this.record = new DatRecord(headings);
+        }
+
+        @Override
+        public boolean onError(String line, int index, String problem) {
+            items.add(new Problem(line, index, problem));
+            return false;
+        }
+
+        @Override
+        public boolean onLine(DatLine line) {
+            if (stopped.get()) {
+                return false;
+            }
+            if (DatFileParser.accepts(filter, line) && DatFileParser.fill(line, record, this)) {
+                items.add(new Record(line.index(), record.copyValues()));
+            }
+            return true;
+        }
+
+        int deliver(int base, DatParserConsumer c) {
+            for (Object o : items) {
+                if (o instanceof Record) {
+                    Record rec = (Record) o;
+                    int index = base + rec.index;
+                    if (!c.accept(index, record.load(index, rec.values))) {
+                        stopped.set(true);
+                        break;
+                    }
+                } else {
+                    Problem p = (Problem) o;
+                    c.onError(p.line, p.index, p.problem);
+                }
+            }
+            return base + lines;
+        }
+    }
+
+    private static final class Record {
+
+        final int index;
+        final String[] values;
+
+        Record(int index, String[] values) {
+            this.index = index;
+            this.values = values;
+        }
+    }
+
+    private static final class Problem {
+
+        final String line;
+        final int index;
+        final String problem;
+
+        Problem(String line, int index, String problem) {
+            this.line = line;
+            this.index = index;
+            this.problem = problem;
+        }
+    }
+}
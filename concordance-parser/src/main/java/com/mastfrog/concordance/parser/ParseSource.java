@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Something the parsers can read from - either a file, which may be memory
+ * mapped and parsed in parallel, or a stream with a declared volume name, such
+ * as the output of <code>tar -xOf</code> piped into stdin, which is parsed in a
+ * single forward pass and never needs random access or temp files.
+ *
+ * @author Tim Boudreau
+ */
+public abstract class ParseSource {
+
+    private final String volumeName;
+
+    ParseSource(String volumeName) {
+        if (volumeName == null) {
+            throw new IllegalArgumentException("Null volume name");
+        }
+        this.volumeName = volumeName;
+    }
+
+    /**
+     * Create a source for a file; its volume name is the file name without
+     * the extension.
+     *
+     * @param path A file
+     * @return A source
+     */
+    public static ParseSource of(Path path) {
+        return new PathSource(path);
+    }
+
+    /**
+     * Create a source for a stream, which can only be parsed once; the caller
+     * remains responsible for closing the stream if it is never parsed.
+     *
+     * @param volumeName The volume name, e.g. SOMECASEVOL001
+     * @param in A stream
+     * @return A source
+     */
+    public static ParseSource of(String volumeName, InputStream in) {
+        return new ChannelSource(volumeName, Channels.newChannel(in));
+    }
+
+    /**
+     * Create a source for a channel, which can only be parsed once; the caller
+     * remains responsible for closing the channel if it is never parsed.
+     *
+     * @param volumeName The volume name, e.g. SOMECASEVOL001
+     * @param channel A channel
+     * @return A source
+     */
+    public static ParseSource of(String volumeName, ReadableByteChannel channel) {
+        return new ChannelSource(volumeName, channel);
+    }
+
+    public final String volumeName() {
+        return volumeName;
+    }
+
+    /**
+     * Get the file this source reads, if it is one.
+     *
+     * @return A path or null
+     */
+    public Path path() {
+        return null;
+    }
+
+    /**
+     * Determine if this source is a file which can be memory mapped and read
+     * at arbitrary positions.
+     *
+     * @return true if it is
+     */
+    public boolean isRandomAccess() {
+        return false;
+    }
+
+    /**
+     * Open a channel over the contents of this source; closing it closes the
+     * underlying stream.
+     *
+     * @return A channel
+     * @throws IOException If the source cannot be opened or was already read
+     */
+    public abstract ReadableByteChannel open() throws IOException;
+
+    static final class PathSource extends ParseSource {
+
+        private final Path path;
+
+        PathSource(Path path) {
+            super(volumeName(path));
+            this.path = path;
+        }
+
+        private static String volumeName(Path path) {
+            String s = path.getFileName().toString();
+            int ix = s.lastIndexOf('.');
+            return ix > 0 ? s.substring(0, ix) : s;
+        }
+
+        @Override
+        public Path path() {
+            return path;
+        }
+
+        @Override
+        public boolean isRandomAccess() {
+            return DatTokenizer.isMappable(path);
+        }
+
+        @Override
+        public ReadableByteChannel open() throws IOException {
+            return Files.newByteChannel(path, READ);
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    static final class ChannelSource extends ParseSource {
+
+        private final ReadableByteChannel channel;
+        private final AtomicBoolean opened = new AtomicBoolean();
+
+        ChannelSource(String volumeName, ReadableByteChannel channel) {
+            super(volumeName);
+            this.channel = channel;
+        }
+
+        @Override
+        public ReadableByteChannel open() throws IOException {
+            if (opened.getAndSet(true)) {
+                throw new IOException("Stream for " + volumeName() + " was already read");
+            }
+            return channel;
+        }
+
+        @Override
+        public String toString() {
+            return volumeName() + " (stream)";
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton which finds any of a set of phrases in a single pass
+ * over the bytes of a line, without decoding it. Phrases are encoded with the
+ * charset of the data; since UTF-8 is self-synchronizing, a match in the
+ * bytes is a match in the decoded text.
+ * <p>
+ * The automaton is compiled into a dense transition table over an alphabet
+ * reduced to the bytes which actually occur in some phrase, so matching costs
+ * two array lookups per byte however many phrases there are. Instances are
+ * immutable and may be shared between threads.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class PhraseMatcher {
+
+    private final String[] phrases;
+    private final int[] classes;
+    private final int classCount;
+    private final int[] transitions;
+    private final int[] matches;
+
+    private PhraseMatcher(String[] phrases, int[] classes, int classCount,
+            int[] transitions, int[] matches) {
+        this.phrases = phrases;
+        this.classes = classes;
+        this.classCount = classCount;
+        this.transitions = transitions;
+        this.matches = matches;
+    }
+
+    public static PhraseMatcher compile(Collection<String> phrases) {
+        return compile(UTF_8, phrases);
+    }
+
+    /**
+     * Compile a matcher; empty phrases are ignored.
+     *
+     * @param charset The charset of the data that will be matched
+     * @param phrases Some phrases
+     * @return A matcher
+     */
+    public static PhraseMatcher compile(Charset charset, Collection<String> phrases) {
+        List<String> names = new ArrayList<>(phrases.size());
+        List<byte[]> encoded = new ArrayList<>(phrases.size());
+        for (String p : phrases) {
+            if (!p.isEmpty()) {
+                names.add(p);
+                encoded.add(p.getBytes(charset));
+            }
+        }
+        // Reduce the alphabet to the bytes that matter; class 0 is everything else
+        int[] classes = new int[256];
+        int classCount = 1;
+        for (byte[] bytes : encoded) {
+            for (byte b : bytes) {
+                if (classes[b & 0xFF] == 0) {
+                    classes[b & 0xFF] = classCount++;
+                }
+            }
+        }
+        // Build the trie
+        int maxStates = 1;
+        for (byte[] bytes : encoded) {
+            maxStates += bytes.length;
+        }
+        int[] trie = new int[maxStates * classCount];
+        Arrays.fill(trie, -1);
+        int[] matches = new int[maxStates];
+        Arrays.fill(matches, -1);
+        int states = 1;
+        for (int p = 0; p < encoded.size(); p++) {
+            int state = 0;
+            for (byte b : encoded.get(p)) {
+                int ix = state * classCount + classes[b & 0xFF];
+                if (trie[ix] < 0) {
+                    trie[ix] = states++;
+                }
+                state = trie[ix];
+            }
+            if (matches[state] < 0) {
+                matches[state] = p;
+            }
+        }
+        // Breadth-first, fill in failure transitions so that the table becomes
+        // a DFA, and propagate matches from failure states
+        int[] transitions = Arrays.copyOf(trie, states * classCount);
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < classCount; c++) {
+            int next = transitions[c];
+            if (next < 0) {
+                transitions[c] = 0;
+            } else {
+                fail[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            if (matches[state] < 0) {
+                matches[state] = matches[fail[state]];
+            }
+            for (int c = 0; c < classCount; c++) {
+                int ix = state * classCount + c;
+                int next = transitions[ix];
+                int failTo = transitions[fail[state] * classCount + c];
+                if (next < 0) {
+                    transitions[ix] = failTo;
+                } else {
+                    fail[next] = failTo;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return new PhraseMatcher(names.toArray(new String[names.size()]), classes,
+                classCount, transitions, Arrays.copyOf(matches, states));
+    }
+
+    public boolean isEmpty() {
+        return phrases.length == 0;
+    }
+
+    public int phraseCount() {
+        return phrases.length;
+    }
+
+    public String phrase(int index) {
+        return phrases[index];
+    }
+
+    /**
+     * Find the first phrase to complete a match in a line.
+     *
+     * @param line A line
+     * @return The index of the phrase, or -1 if none matches
+     */
+    public int find(DatLine line) {
+        return find(line.buffer(), line.start(), line.end());
+    }
+
+    public int find(ByteBuffer buffer, int from, int to) {
+        if (phrases.length == 0) {
+            return -1;
+        }
+        int state = 0;
+        for (int i = from; i < to; i++) {
+            state = transitions[state * classCount + classes[buffer.get(i) & 0xFF]];
+            if (matches[state] >= 0) {
+                return matches[state];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first phrase to complete a match in some characters, which are
+     * fed to the automaton as UTF-8, so this is only meaningful for a matcher
+     * compiled for UTF-8.
+     *
+     * @param text Some text
+     * @return The index of the phrase, or -1 if none matches
+     */
+    public int find(CharSequence text) {
+        if (phrases.length == 0) {
+            return -1;
+        }
+        int state = 0;
+        int len = text.length();
+        for (int i = 0; i < len; i++) {
+            int cp = Character.codePointAt(text, i);
+            if (cp > 0xFFFF) {
+                i++;
+            }
+            int match;
+            if (cp < 0x80) {
+                match = step(state, cp);
+            } else if (cp < 0x800) {
+                match = step(step(state, 0xC0 | (cp >> 6)),
+                        0x80 | (cp & 0x3F));
+            } else if (cp < 0x10000) {
+                match = step(step(step(state, 0xE0 | (cp >> 12)),
+                        0x80 | ((cp >> 6) & 0x3F)), 0x80 | (cp & 0x3F));
+            } else {
+                match = step(step(step(step(state, 0xF0 | (cp >> 18)),
+                        0x80 | ((cp >> 12) & 0x3F)), 0x80 | ((cp >> 6) & 0x3F)),
+                        0x80 | (cp & 0x3F));
+            }
+            if (match < 0) {
+                return -match - 1;
+            }
+            state = match;
+        }
+        return -1;
+    }
+
+    /**
+     * Advance one byte; returns the new state, or if the state is negative
+     * (a match already happened), leaves it alone, and if the new state
+     * completes a match, returns -(phrase + 1).
+     */
+    private int step(int state, int b) {
+        if (state < 0) {
+            return state;
+        }
+        int next = transitions[state * classCount + classes[b & 0xFF]];
+        return matches[next] >= 0 ? -matches[next] - 1 : next;
+    }
+
+    @Override
+    public String toString() {
+        return "PhraseMatcher(" + String.join(",", phrases) + ")";
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.to.xls.tool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lets a run be stopped from another thread without exiting. Loops over files
+ * and records check it; anything that may be blocked, in a wait or in I/O,
+ * registers something to interrupt or close it when cancel is called.
+ *
+ * @author Tim Boudreau
+ */
+public final class Cancellation {
+
+    private volatile boolean cancelled;
+    private final List<Runnable> onCancel = new ArrayList<>();
+
+    public void cancel() {
+        List<Runnable> hooks;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            hooks = new ArrayList<>(onCancel);
+            onCancel.clear();
+        }
+        for (Runnable hook : hooks) {
+            try {
+                hook.run();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(Cancellation.class.getName()).log(Level.INFO, "Cancelling", ex);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throw if cancelled.
+     *
+     * @throws CancellationException if cancelled
+     */
+    public void check() {
+        if (cancelled) {
+            throw new CancellationException("Cancelled");
+        }
+    }
+
+    /**
+     * Run something when cancelled, or now if already cancelled.
+     *
+     * @param hook Something to run
+     */
+    void onCancel(Runnable hook) {
+        synchronized (this) {
+            if (!cancelled) {
+                onCancel.add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+}
@@ -21,6 +21,7 @@ package com.mastfrog.concordance.to.xls.tool;
 import java.awt.EventQueue;
 import java.io.IOException;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -58,16 +59,42 @@ public class ConcordanceToXlsTool {
     }
 
     public void launch(ProgressConsumer consumer) throws IOException {
-        Scanner scan = new Scanner(settings);
+        launch(consumer, new Cancellation());
+    }
+
+    /**
+     * Scan for files and start processing them, returning once processing has
+     * started on background threads.
+     *
+     * @param consumer Notified of progress
+     * @param cancel Stops the run early, wherever it is
+     * @throws IOException If scanning fails
+     */
+    public void launch(ProgressConsumer consumer, Cancellation cancel) throws IOException {
+        Scanner scan = new Scanner(settings, cancel);
         Set<FilePair> pairs = ConcurrentHashMap.newKeySet();
-        scan.scan(pairs, consumer);
-        System.out.println("Scan done");
-        if (!pairs.isEmpty()) {
-            Processor proc = new Processor(pairs, settings);
-            System.out.println("Process " + pairs.size());
-            proc.go(consumer);
-        } else {
-            consumer.onError("No files found", new Error(), true);
+        // The processor closes the scanner once it is done with the files
+        boolean handedOff = false;
+        try {
+            try {
+                scan.scan(pairs, consumer);
+            } catch (CancellationException ex) {
+                Processor.cancelled(consumer);
+                return;
+            }
+            System.out.println("Scan done");
+            if (!pairs.isEmpty()) {
+                Processor proc = new Processor(pairs, settings, cancel, scan);
+                System.out.println("Process " + pairs.size());
+                handedOff = true;
+                proc.go(consumer);
+            } else {
+                consumer.onError("No files found", new Error(), true);
+            }
+        } finally {
+            if (!handedOff) {
+                scan.close();
+            }
         }
     }
 
@@ -33,6 +33,12 @@ public class ConversionSettings {
     private Path root;
     private Path dest = destFile("dest", "ConcordanceConversion.xlsx");
     private boolean scan;
+    private boolean offHeap;
+    private boolean cacheOptFiles;
+    private boolean resumable;
+    private int ioThreads;
+    private int cpuThreads;
+    private int spillMemory;
     private OutputFormat format = OutputFormat.XLSX;
     private Filters filters = Filters.load();
 
@@ -57,6 +63,15 @@ public class ConversionSettings {
                 ex.printStackTrace();
             }
         }
+        Preferences prefs = Preferences.userNodeForPackage(ConversionSettings.class);
+        offHeap = prefs.getBoolean("offHeap", false);
+        cacheOptFiles = prefs.getBoolean("cacheOpt", true);
+        resumable = prefs.getBoolean("resumable", true);
+        int cores = Runtime.getRuntime().availableProcessors();
+        ioThreads = Math.max(1, prefs.getInt("ioThreads", cores * 2));
+        cpuThreads = Math.max(1, prefs.getInt("cpuThreads", cores));
+        int defaultSpill = (int) Math.min(1024, Runtime.getRuntime().maxMemory() / (4 * 1024 * 1024));
+        spillMemory = Math.max(0, prefs.getInt("spillMemory", defaultSpill));
     }
 
     public Filters filters() {
@@ -128,6 +143,119 @@ public class ConversionSettings {
         return scan;
     }
 
+    /**
+     * Set whether the .opt dictionary is kept in memory-mapped temp files
+     * rather than on the Java heap, for productions too large for RAM.
+     *
+     * @param val Whether to use off-heap storage
+     * @return this
+     */
+    public ConversionSettings offHeap(boolean val) {
+        this.offHeap = val;
+        Preferences.userNodeForPackage(ConversionSettings.class)
+                .putBoolean("offHeap", val);
+        return this;
+    }
+
+    public boolean offHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Set whether parsed .opt files are cached between runs, so only volumes
+     * which changed are parsed again.
+     *
+     * @param val Whether to cache
+     * @return this
+     */
+    public ConversionSettings cacheOptFiles(boolean val) {
+        this.cacheOptFiles = val;
+        Preferences.userNodeForPackage(ConversionSettings.class)
+                .putBoolean("cacheOpt", val);
+        return this;
+    }
+
+    public boolean cacheOptFiles() {
+        return cacheOptFiles;
+    }
+
+    /**
+     * Set whether each volume is saved to a journal beside the output as it is
+     * finished, so if a run dies before the output is written, running it
+     * again picks up where it left off.
+     *
+     * @param val Whether to keep a journal
+     * @return this
+     */
+    public ConversionSettings resumable(boolean val) {
+        this.resumable = val;
+        Preferences.userNodeForPackage(ConversionSettings.class)
+                .putBoolean("resumable", val);
+        return this;
+    }
+
+    public boolean resumable() {
+        return resumable;
+    }
+
+    /**
+     * Set how many .opt files are read at once; reading them is mostly I/O.
+     *
+     * @param val A number of threads
+     * @return this
+     */
+    public ConversionSettings ioThreads(int val) {
+        this.ioThreads = Math.max(1, val);
+        Preferences.userNodeForPackage(ConversionSettings.class)
+                .putInt("ioThreads", ioThreads);
+        return this;
+    }
+
+    public int ioThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Set how many .dat files are processed at once, which is also the
+     * parallelism used to split up very large ones; processing them is mostly
+     * CPU.
+     *
+     * @param val A number of threads
+     * @return this
+     */
+    public ConversionSettings cpuThreads(int val) {
+        this.cpuThreads = Math.max(1, val);
+        Preferences.userNodeForPackage(ConversionSettings.class)
+                .putInt("cpuThreads", cpuThreads);
+        return this;
+    }
+
+    public int cpuThreads() {
+        return cpuThreads;
+    }
+
+    /**
+     * Set how many megabytes of compressed records may be held in memory
+     * before the rest are spilled to temp files.
+     *
+     * @param val A number of megabytes, 0 to always use temp files
+     * @return this
+     */
+    public ConversionSettings spillMemory(int val) {
+        this.spillMemory = Math.max(0, val);
+        Preferences.userNodeForPackage(ConversionSettings.class)
+                .putInt("spillMemory", spillMemory);
+        return this;
+    }
+
+    public int spillMemory() {
+        return spillMemory;
+    }
+
+    public Path optCacheDir() {
+        return getFromPrefs("optCacheDir").map(Paths::get).orElseGet(OptCache::defaultDir);
+    }
+
     public Path root() {
         return root;
     }
@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.to.xls.tool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+/**
+ * Writes CSV or JSON output as the workers processing .dat files go, for
+ * formats where, unlike a spreadsheet, rows can be written as they arrive once
+ * the headings are known. Workers format rows in parallel into runs in
+ * TempItems, which passes each volume's rows here once every volume before it
+ * has been written, so the order is the same on every run. The output goes to
+ * a temp file beside the real one, which replaces it once everything is
+ * written.
+ * <p>
+ * CSV headings are a guess made before any rows exist; a row with a value for
+ * a column the guess missed carries it as a trailing name and value pair, and
+ * if the headings the rows turn out to have differ from the guess, the file is
+ * rewritten with them when it is closed. Since .dat values never contain line
+ * breaks, each row is a single line.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class DirectOutput implements AutoCloseable, TempItems.Sink {
+
+    private static final int FLUSH_BYTES = 512 * 1024;
+    private static final String EOL = System.lineSeparator();
+    private final OutputFormat format;
+    private final Path file;
+    private final Path temp;
+    private final OutputStream out;
+    private final String[] headings;
+    private final Map<String, Integer> columns = new HashMap<>();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Cancellation cancel;
+    private String[] actual;
+    private int rows;
+    private boolean open = true;
+
+    /**
+     * Create an output.
+     *
+     * @param settings The settings, which determine the file and format
+     * @param headings Every column any record can have, whether or not any
+     * does
+     * @param cancel Checked for each row written
+     * @throws IOException If the file cannot be created
+     */
+    DirectOutput(ConversionSettings settings, Set<String> headings, Cancellation cancel) throws IOException {
+        this.cancel = cancel;
+        format = settings.format();
+        file = settings.output();
+        temp = file.resolveSibling(file.getFileName() + ".part");
+        this.headings = new TreeSet<>(headings).toArray(new String[headings.size()]);
+        for (int i = 0; i < this.headings.length; i++) {
+            columns.put(this.headings[i], i);
+        }
+        mapper.enable(SerializationFeature.INDENT_OUTPUT);
+        out = new BufferedOutputStream(Files.newOutputStream(temp, CREATE, WRITE, TRUNCATE_EXISTING),
+                FLUSH_BYTES);
+        out.write((format == OutputFormat.JSON ? "[" : headingLine(this.headings)).getBytes(UTF_8));
+    }
+
+    private static String headingLine(String[] headings) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < headings.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(XLSGenerator.csvCell(headings[i]));
+        }
+        return sb.append(EOL).toString();
+    }
+
+    Path file() {
+        return file;
+    }
+
+    synchronized int rows() {
+        return rows;
+    }
+
+    /**
+     * Pass the headings the rows turned out to have, once all are written; if
+     * they differ from the ones passed to the constructor, close() rewrites the
+     * file with them.
+     *
+     * @param headings The headings
+     */
+    synchronized void headings(Set<String> headings) {
+        if (format == OutputFormat.CSV) {
+            String[] sorted = new TreeSet<>(headings).toArray(new String[headings.size()]);
+            actual = Arrays.equals(sorted, this.headings) ? null : sorted;
+        }
+    }
+
+    /**
+     * Create a writer for one thread to use for one .dat file.
+     *
+     * @param runs Supplies runs to put rows in
+     * @return A writer
+     */
+    RecordWriter writer(Supplier<TempItems.Run> runs) {
+        return format == OutputFormat.JSON ? new JsonRows(runs) : new CsvRows(runs);
+    }
+
+    @Override
+    public synchronized void entry(byte[] bytes, int offset, int length) throws IOException {
+        cancel.check();
+        // JSON rows are each preceded by a comma, except the first in the file
+        int skip = format == OutputFormat.JSON && rows == 0 ? 1 : 0;
+        out.write(bytes, offset + skip, length - skip);
+        rows++;
+    }
+
+    /**
+     * Finish the file and move it into place.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (open) {
+            open = false;
+            boolean moved = false;
+            try {
+                try {
+                    if (format == OutputFormat.JSON) {
+                        out.write((']' + EOL).getBytes(UTF_8));
+                    }
+                } finally {
+                    out.close();
+                }
+                if (actual != null) {
+                    rewrite(actual);
+                } else {
+                    Files.move(temp, file, REPLACE_EXISTING);
+                }
+                moved = true;
+            } finally {
+                if (!moved) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the rows of the temp file to the real one in the columns of the
+     * passed headings, and delete the temp file.
+     */
+    private void rewrite(String[] to) throws IOException {
+        Map<String, Integer> target = new HashMap<>();
+        for (int i = 0; i < to.length; i++) {
+            target.put(to[i], i);
+        }
+        int[] moves = new int[headings.length];
+        for (int i = 0; i < headings.length; i++) {
+            moves[i] = target.getOrDefault(headings[i], -1);
+        }
+        Path part = file.resolveSibling(file.getFileName() + ".part2");
+        boolean done = false;
+        try (BufferedReader in = Files.newBufferedReader(temp, UTF_8);
+                OutputStream o = new BufferedOutputStream(Files.newOutputStream(part, CREATE, WRITE, TRUNCATE_EXISTING),
+                        FLUSH_BYTES)) {
+            o.write(headingLine(to).getBytes(UTF_8));
+            in.readLine();
+            String[] row = new String[to.length];
+            List<String> cells = new ArrayList<>(headings.length + 2);
+            StringBuilder sb = new StringBuilder(512);
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                cancel.check();
+                cells(line, cells);
+                Arrays.fill(row, null);
+                for (int i = 0; i < headings.length && i < cells.size(); i++) {
+                    if (moves[i] >= 0) {
+                        row[moves[i]] = cells.get(i);
+                    }
+                }
+                for (int i = headings.length; i + 1 < cells.size(); i += 2) {
+                    Integer ix = target.get(unquote(cells.get(i)));
+                    if (ix != null) {
+                        row[ix] = cells.get(i + 1);
+                    }
+                }
+                sb.setLength(0);
+                for (int i = 0; i < row.length; i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    if (row[i] != null) {
+                        sb.append(row[i]);
+                    }
+                }
+                o.write(sb.append(EOL).toString().getBytes(UTF_8));
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(part);
+            }
+        }
+        Files.move(part, file, REPLACE_EXISTING);
+        Files.delete(temp);
+    }
+
+    /**
+     * Split a line as written by csvCell() into its cells, still quoted.
+     */
+    private static void cells(String line, List<String> into) {
+        into.clear();
+        int start = 0;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                into.add(line.substring(start, i));
+                start = i + 1;
+            }
+        }
+        into.add(line.substring(start));
+    }
+
+    private static String unquote(String cell) {
+        if (cell.length() > 1 && cell.charAt(0) == '"') {
+            return cell.substring(1, cell.length() - 1).replace("\"\"", "\"");
+        }
+        return cell;
+    }
+
+    /**
+     * Discard the output, leaving any existing file alone.
+     */
+    synchronized void abort() throws IOException {
+        if (open) {
+            open = false;
+            try {
+                out.close();
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Collects one row's values and synthetic values, and the formatted rows
+     * not yet handed to the current run, as entries in the format TempItems
+     * describes whose payload is the row's text.
+     */
+    private abstract class Rows implements RecordWriter {
+
+        final StringBuilder line = new StringBuilder(512);
+        private final Supplier<TempItems.Run> runs;
+        private TempItems.Run run;
+        private int last = -1;
+        private byte[] bytes = new byte[FLUSH_BYTES + 64 * 1024];
+        private int size;
+        private String[] synthKeys = new String[8];
+        private String[] synthValues = new String[8];
+        private int synthCount;
+        private int count;
+
+        Rows(Supplier<TempItems.Run> runs) {
+            this.runs = runs;
+        }
+
+        @Override
+        public void begin(int record) throws IOException {
+            if (run == null || record < last) {
+                flush();
+                run = runs.get();
+            }
+            last = record;
+            synthCount = 0;
+            line.setLength(0);
+        }
+
+        @Override
+        public void synthetic(String key, String value) {
+            if (synthCount == synthKeys.length) {
+                synthKeys = Arrays.copyOf(synthKeys, synthCount * 2);
+                synthValues = Arrays.copyOf(synthValues, synthCount * 2);
+            }
+            synthKeys[synthCount] = key;
+            synthValues[synthCount++] = value;
+        }
+
+        @Override
+        public void synthetic(String key, byte[] utf8, int offset, int length) {
+            synthetic(key, new String(utf8, offset, length, UTF_8));
+        }
+
+        @Override
+        public void end() throws IOException {
+            for (int i = 0; i < synthCount; i++) {
+                value(synthKeys[i], synthValues[i]);
+            }
+            format();
+            String text = line.toString();
+            int length = RecordBatch.utf8Length(text);
+            if (size + length + 9 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length + 9));
+            }
+            int start = size;
+            size = RecordBatch.varint(bytes, start + 4, last);
+            size = RecordBatch.utf8(text, bytes, size);
+            RecordBatch.length(bytes, start, size - start - 4);
+            count++;
+        }
+
+        abstract void format() throws IOException;
+
+        @Override
+        public boolean isFull() {
+            return size >= FLUSH_BYTES;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            try {
+                run.write(bytes, size, count);
+            } finally {
+                size = 0;
+                count = 0;
+            }
+        }
+    }
+
+    private final class CsvRows extends Rows {
+
+        private final String[] row = new String[headings.length];
+        private final List<String> extra = new ArrayList<>(4);
+
+        CsvRows(Supplier<TempItems.Run> runs) {
+            super(runs);
+        }
+
+        @Override
+        public void begin(int record) throws IOException {
+            super.begin(record);
+            Arrays.fill(row, null);
+            extra.clear();
+        }
+
+        @Override
+        public void value(String key, String value) {
+            Integer ix = columns.get(key);
+            if (ix != null) {
+                row[ix] = value;
+            } else {
+                extra.add(key);
+                extra.add(value);
+            }
+        }
+
+        @Override
+        void format() {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                if (row[i] != null) {
+                    line.append(XLSGenerator.csvCell(row[i]));
+                }
+            }
+            for (String cell : extra) {
+                line.append(',').append(XLSGenerator.csvCell(cell));
+            }
+            line.append(EOL);
+        }
+    }
+
+    private final class JsonRows extends Rows {
+
+        private final Map<String, String> row = new TreeMap<>();
+
+        JsonRows(Supplier<TempItems.Run> runs) {
+            super(runs);
+        }
+
+        @Override
+        public void begin(int record) throws IOException {
+            super.begin(record);
+            row.clear();
+        }
+
+        @Override
+        public void value(String key, String value) {
+            row.put(key, value);
+        }
+
+        @Override
+        void format() throws IOException {
+            line.append(',').append(mapper.writeValueAsString(row)).append(EOL);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.to.xls.tool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Learns, per volume, which .dat columns contain document IDs. Every column is
+ * probed for its first LEARNING_VALUES non-empty values; after that only
+ * columns which have resolved against the .opt dictionary at least once are
+ * probed for every value, and the rest are re-sampled every RESAMPLE_INTERVAL
+ * values, and promoted if a sample resolves. Counting per column means a
+ * sparse column, such as an attachment's parent id, gets as long to prove
+ * itself as a dense one.
+ * <p>
+ * Unresolved IDs in a column which has never resolved are held back until it
+ * does, so hash and name columns which merely look like IDs don't flood the
+ * problems list; they show up as counts in the summary, which is logged once
+ * each .dat file is done, instead.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class DocIdColumns {
+
+    static final int LEARNING_VALUES = 500;
+    static final int RESAMPLE_INTERVAL = 50;
+    private static final int MAX_DEFERRED = 100;
+    private final Map<String, Column> columns = new HashMap<>();
+    private final List<Column> order = new ArrayList<>();
+    private int rows;
+
+    void row() {
+        rows++;
+    }
+
+    Column column(String name) {
+        Column result = columns.get(name);
+        if (result == null) {
+            result = new Column(name);
+            columns.put(name, result);
+            order.add(result);
+        }
+        return result;
+    }
+
+    /**
+     * Decide whether to look up a non-empty value of a column.
+     *
+     * @param column The column
+     * @return Whether to look it up
+     */
+    boolean probe(Column column) {
+        if (column.hits > 0 || ++column.values <= LEARNING_VALUES
+                || ++column.sinceProbe >= RESAMPLE_INTERVAL) {
+            column.sinceProbe = 0;
+            column.probed++;
+            return true;
+        }
+        column.skipped++;
+        return false;
+    }
+
+    String summary() {
+        StringBuilder sb = new StringBuilder(
+                "Document ID columns (probed/resolved/unresolved/skipped) over ")
+                .append(rows).append(" rows:");
+        for (int i = 0; i < order.size(); i++) {
+            sb.append(i == 0 ? " " : ", ").append(order.get(i));
+        }
+        return sb.toString();
+    }
+
+    static final class Column {
+
+        private final String name;
+        private int probed;
+        private int hits;
+        private int misses;
+        private int skipped;
+        private int values;
+        // Values skipped since the column was last probed
+        private int sinceProbe;
+        private List<Runnable> deferred = new ArrayList<>();
+
+        Column(String name) {
+            this.name = name;
+        }
+
+        void resolved() {
+            if (hits++ == 0) {
+                List<Runnable> pending = deferred;
+                deferred = null;
+                pending.forEach(Runnable::run);
+            }
+        }
+
+        void unresolved(Runnable report) {
+            misses++;
+            if (hits > 0) {
+                report.run();
+            } else if (deferred.size() < MAX_DEFERRED) {
+                deferred.add(report);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + probed + "/" + hits + "/" + misses + "/" + skipped;
+        }
+    }
+}
@@ -18,23 +18,35 @@
  */
 package com.mastfrog.concordance.to.xls.tool;
 
-import com.mastfrog.function.state.Int;
+import com.mastfrog.concordance.parser.DatHeadings;
+import com.mastfrog.concordance.parser.DatLine;
+import com.mastfrog.concordance.parser.FilterExpression;
+import com.mastfrog.concordance.parser.PhraseMatcher;
 import com.mastfrog.util.strings.Strings;
-import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.prefs.Preferences;
 
 /**
+ * Exclusion phrases, compiled into a single automaton which finds any of them
+ * in one pass over a line, with per-phrase hit counts, plus an optional
+ * expression over columns which records must match.
  *
  * @author Tim Boudreau
  */
 public class Filters implements Predicate<String> {
 
     public Set<String> exclude = new LinkedHashSet<>();
-    private final Set<Int> counters = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private volatile Compiled compiled;
+    private FilterExpression expression;
+    private final LongAdder expressionHits = new LongAdder();
 
     static Filters load() {
         Preferences p = Preferences.userNodeForPackage(Filters.class);
@@ -43,32 +55,143 @@ public class Filters implements Predicate<String> {
         if (!saved.isEmpty()) {
             result.setFilters(saved);
         }
+        String expr = p.get("expression", "");
+        if (!expr.isEmpty()) {
+            try {
+                result.setExpression(expr);
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger(Filters.class.getName()).log(Level.INFO,
+                        "Bad saved expression", ex);
+            }
+        }
         return result;
     }
 
     public boolean isEmpty() {
-        return exclude.isEmpty();
+        return exclude.isEmpty() && expression == null;
     }
 
     public void save() {
         Preferences p = Preferences.userNodeForPackage(Filters.class);
         p.put("exclude", toString());
+        p.put("expression", expression == null ? "" : expression.toString());
     }
 
-    public Int counter() {
-        Int result = Int.create();
-        counters.add(result);
-        return result;
+    /**
+     * Set an expression records must match to be included, such as
+     * <code>Custodian = "Smith" AND NOT FileExt IN (tmp, db)</code>; blank
+     * clears it.
+     *
+     * @param expr The expression
+     * @throws IllegalArgumentException if the expression cannot be parsed
+     */
+    public void setExpression(String expr) {
+        expr = expr.trim();
+        expression = expr.isEmpty() ? null : FilterExpression.parse(expr);
+        expressionHits.reset();
+    }
+
+    public String expression() {
+        return expression == null ? "" : expression.toString();
+    }
+
+    /**
+     * Get a factory for the per-file filter for the expression, if one is set.
+     *
+     * @return A function which binds the expression to a file's headings, or
+     * null
+     */
+    public Function<DatHeadings, Predicate<DatLine>> columnFilter() {
+        FilterExpression expr = expression;
+        if (expr == null) {
+            return null;
+        }
+        return headings -> {
+            Predicate<DatLine> bound = expr.bind(headings);
+            return line -> {
+                if (bound.test(line)) {
+                    return true;
+                }
+                expressionHits.increment();
+                return false;
+            };
+        };
     }
 
+    /**
+     * Set the filters, which also resets the hit counts.
+     *
+     * @param filters A comma-delimited list of phrases
+     */
     public void setFilters(String filters) {
         exclude.clear();
         for (String s : filters.split(",")) {
-            if ("".equals(s)) {
+            s = s.trim();
+            if (s.isEmpty()) {
                 continue;
             }
-            exclude.add(s.trim());
+            exclude.add(s);
         }
+        compiled = null;
+    }
+
+    private Compiled compiled() {
+        Compiled result = compiled;
+        if (result == null) {
+            synchronized (this) {
+                result = compiled;
+                if (result == null) {
+                    compiled = result = new Compiled(PhraseMatcher.compile(exclude));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get a filter which runs over the raw bytes of a line before anything is
+     * decoded.
+     *
+     * @return A predicate
+     */
+    public Predicate<DatLine> lineFilter() {
+        Compiled c = compiled();
+        return line -> c.accept(c.matcher.find(line));
+    }
+
+    /**
+     * The number of records excluded since the filters were last set.
+     *
+     * @return A count
+     */
+    public long excludedCount() {
+        long result = expressionHits.sum();
+        for (LongAdder hits : compiled().hits) {
+            result += hits.sum();
+        }
+        return result;
+    }
+
+    /**
+     * The number of records excluded by each phrase, for those phrases which
+     * excluded something, and by the expression.
+     *
+     * @return A map of phrase to count
+     */
+    public Map<String, Long> hitCounts() {
+        Compiled c = compiled();
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < c.hits.length; i++) {
+            long count = c.hits[i].sum();
+            if (count > 0) {
+                result.put(c.matcher.phrase(i), count);
+            }
+        }
+        long exprCount = expressionHits.sum();
+        if (exprCount > 0) {
+            result.put("not matching " + expression(), exprCount);
+        }
+        return result;
     }
 
     @Override
@@ -78,14 +201,29 @@ public class Filters implements Predicate<String> {
 
     @Override
     public boolean test(String t) {
-        for (String e : exclude) {
-            if (t.contains(e)) {
-                for (Int i : counters) {
-                    i.increment();
-                }
-                return false;
+        Compiled c = compiled();
+        return c.accept(c.matcher.find(t));
+    }
+
+    private static final class Compiled {
+
+        final PhraseMatcher matcher;
+        final LongAdder[] hits;
+
+        Compiled(PhraseMatcher matcher) {
+            this.matcher = matcher;
+            hits = new LongAdder[matcher.phraseCount()];
+            for (int i = 0; i < hits.length; i++) {
+                hits[i] = new LongAdder();
+            }
+        }
+
+        boolean accept(int match) {
+            if (match < 0) {
+                return true;
             }
+            hits[match].increment();
+            return false;
         }
-        return true;
     }
 }
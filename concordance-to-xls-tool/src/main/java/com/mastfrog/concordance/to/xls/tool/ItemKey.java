@@ -21,7 +21,6 @@ package com.mastfrog.concordance.to.xls.tool;
 import java.lang.StackWalker.Option;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.regex.Matcher;
 
 /**
  * Key composed of a file name prefix plus integer suffix such as FOO00003.
@@ -65,6 +64,14 @@ public final class ItemKey {
         return digits;
     }
 
+    String prefix() {
+        return prefix;
+    }
+
+    int index() {
+        return index;
+    }
+
     public boolean prefixMatch(int suffixChars, ItemKey other) {
         if (other.prefix == prefix) {
             return true;
@@ -89,35 +96,115 @@ public final class ItemKey {
         return true;
     }
 
+    /**
+     * Like prefixMatch(int, String), for a document id already recognized by
+     * <code>digitsStart()</code>, without extracting its prefix.
+     *
+     * @param suffixChars The number of trailing prefix characters which may
+     * differ
+     * @param txt The text
+     * @param prefixLength The length of its prefix
+     * @return true if the prefix matches
+     */
+    boolean prefixMatch(int suffixChars, CharSequence txt, int prefixLength) {
+        if (prefixLength == prefix.length() && regionMatches(txt, prefixLength)) {
+            return true;
+        }
+        int ct = prefixLength - suffixChars;
+        if (ct < 0 || prefix.length() < ct) {
+            return false;
+        }
+        return regionMatches(txt, ct);
+    }
+
+    private boolean regionMatches(CharSequence txt, int count) {
+        for (int i = 0; i < count; i++) {
+            if (prefix.charAt(i) != txt.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Recognize text shaped like a document id - a prefix of letters, digits
+     * and underscores which ends in a letter or underscore, followed by digits
+     * - the same as <code>OptFileEntry.PAT</code> does, with one backward scan
+     * and no allocation. Most cells are dates, names or text, which fail on
+     * the first or second character examined.
+     *
+     * @param txt Some text
+     * @return The index at which the digits start (the length of the prefix),
+     * or -1
+     */
+    static int digitsStart(CharSequence txt) {
+        int len = txt.length();
+        int start = len;
+        while (start > 0 && isDigit(txt.charAt(start - 1))) {
+            start--;
+        }
+        if (start == len || start == 0) {
+            return -1;
+        }
+        char last = txt.charAt(start - 1);
+        if (last != '_' && !isLetter(last)) {
+            return -1;
+        }
+        for (int i = start - 2; i >= 0; i--) {
+            char c = txt.charAt(i);
+            if (c != '_' && !isLetter(c) && !isDigit(c)) {
+                return -1;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Parse the digits of a recognized document id.
+     *
+     * @param txt The text
+     * @param digitsStart The value returned by digitsStart()
+     * @return The index, or -1 if it does not fit in an int
+     */
+    static int index(CharSequence txt, int digitsStart) {
+        long result = 0;
+        for (int i = digitsStart; i < txt.length(); i++) {
+            result = result * 10 + (txt.charAt(i) - '0');
+            if (result > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) result;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
     public static ItemKey from(String txt) {
-        Matcher m = OptFileEntry.PAT.matcher(txt);
-        if (m.find()) {
-            String pfx = m.group(1);
-            String ints = m.group(2);
-            int ix = Integer.parseInt(ints);
-            byte len = (byte) ints.length();
-            return new ItemKey(ix, pfx, len);
-        } else {
+        int start = digitsStart(txt);
+        if (start < 0) {
             throw new IllegalArgumentException("Could not match " + txt + " with " + OptFileEntry.PAT.pattern());
         }
+        String ints = txt.substring(start);
+        return new ItemKey(Integer.parseInt(ints), txt.substring(0, start), (byte) ints.length());
     }
 
     public static Optional<ItemKey> of(String txt) {
-        Matcher m = OptFileEntry.PAT.matcher(txt);
-        if (m.find()) {
-            String pfx = m.group(1);
-            String ints = m.group(2);
-            try {
-                int ix = Integer.parseInt(ints);
-                byte len = (byte) ints.length();
-                return Optional.of(new ItemKey(ix, pfx, len));
-            } catch (NumberFormatException nfe) {
-                // Something like a hash ending in more digits than will fit in an integer
-                return Optional.empty();
-            }
-        } else {
+        int start = digitsStart(txt);
+        if (start < 0) {
+            return Optional.empty();
+        }
+        int ix = index(txt, start);
+        if (ix < 0) {
+            // Something like a hash ending in more digits than will fit in an integer
             return Optional.empty();
         }
+        return Optional.of(new ItemKey(ix, txt.substring(0, start), (byte) (txt.length() - start)));
     }
 
     @Override
@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.to.xls.tool;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Saves each volume's records once they are all written, in a file beside the
+ * output, so that if a run dies before the output is written - out of memory,
+ * killed, the machine rebooted - running it again with the same files and
+ * settings takes the finished volumes from here instead of parsing their .dat
+ * files again.
+ * <p>
+ * Format: a header (magic, version, and a hash of the format, filters and the
+ * path, size and modification time of every file, in output order), then a
+ * record per finished volume: its length, the volume's place in the output,
+ * the headings and synthetic headings it contributed, and its runs, each a
+ * record count followed by its blocks, copied still compressed from
+ * TempItems; then a CRC32 of the record. The length is filled in last, once
+ * the rest is on disk, so a record cut off by a crash is simply dropped along
+ * with anything after it.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class Journal implements AutoCloseable {
+
+    private static final int MAGIC = 0x4343_444A; // CCDJ
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private final Path file;
+    private final FileChannel channel;
+    // Runs read back from the journal read their blocks from it
+    private final TempItems.Segment segment;
+    private final Map<Integer, Volume> restored = new HashMap<>();
+    private long size;
+    private boolean broken;
+
+    private Journal(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+        segment = new TempItems.Segment(file);
+    }
+
+    static Path file(ConversionSettings settings) {
+        Path out = settings.output();
+        return out.resolveSibling(out.getFileName() + ".journal");
+    }
+
+    /**
+     * Open the journal for a run, keeping the volumes it has if an earlier run
+     * of the same files with the same settings left it, and starting it over
+     * otherwise.
+     *
+     * @param settings The settings
+     * @param volumes The volumes, in output order
+     * @return A journal
+     * @throws IOException If the file cannot be read or written
+     */
+    static Journal open(ConversionSettings settings, List<FilePair> volumes) throws IOException {
+        Path file = file(settings);
+        byte[] key = key(settings, volumes);
+        FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE);
+        Journal result = new Journal(file, channel);
+        try {
+            if (!result.load(key, volumes.size())) {
+                channel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(12 + key.length);
+                header.putInt(MAGIC).putInt(VERSION).putInt(key.length).put(key);
+                header.flip();
+                result.write(header, 0);
+                channel.force(false);
+                result.size = header.limit();
+            }
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            result.close();
+            throw ex;
+        }
+    }
+
+    private static byte[] key(ConversionSettings settings, List<FilePair> volumes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(settings.format().name());
+            out.writeUTF(settings.filters().toString());
+            out.writeUTF(settings.filters().expression());
+            out.writeInt(volumes.size());
+            for (FilePair pair : volumes) {
+                for (Path p : new Path[]{pair.optFile(), pair.datFile()}) {
+                    out.writeUTF(p.toAbsolutePath().toUri().toString());
+                    out.writeLong(Files.size(p));
+                    out.writeLong(Files.getLastModifiedTime(p).toMillis());
+                }
+            }
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    Path file() {
+        return file;
+    }
+
+    synchronized int restoredCount() {
+        return restored.size();
+    }
+
+    /**
+     * Get a volume saved by an earlier run.
+     *
+     * @param volume The volume's place in the output
+     * @return The volume, or null if it was not saved
+     */
+    synchronized Volume restored(int volume) {
+        return restored.get(volume);
+    }
+
+    private boolean load(byte[] key, int volumes) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(12 + key.length);
+        if (fileSize < header.capacity()) {
+            return false;
+        }
+        read(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != key.length) {
+            return false;
+        }
+        byte[] saved = new byte[key.length];
+        header.get(saved);
+        if (!Arrays.equals(key, saved)) {
+            return false;
+        }
+        long pos = header.capacity();
+        for (;;) {
+            long end = readVolume(pos, fileSize, volumes);
+            if (end < 0) {
+                break;
+            }
+            pos = end;
+        }
+        if (pos < fileSize) {
+            // Whatever a crash left half-written
+            channel.truncate(pos);
+        }
+        size = pos;
+        return true;
+    }
+
+    /**
+     * Read the record at a position, returning where the next one starts, or
+     * -1 if there is no intact record there.
+     */
+    private long readVolume(long start, long fileSize, int volumes) throws IOException {
+        if (fileSize - start < 16) {
+            return -1;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        read(buf, start);
+        long length = buf.getLong(0);
+        long body = start + 8;
+        if (length <= 0 || length > fileSize - body - 8) {
+            return -1;
+        }
+        channel.position(body);
+        CRC32 crc = new CRC32();
+        // Not closed, since that would close the channel
+        DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE), crc));
+        try {
+            long pos = body;
+            int volume = in.readInt();
+            pos += 4;
+            List<String> headings = new ArrayList<>();
+            List<String> synthetic = new ArrayList<>();
+            for (List<String> strings : Arrays.asList(headings, synthetic)) {
+                int count = in.readInt();
+                pos += 4;
+                for (int i = 0; i < count; i++) {
+                    byte[] bytes = new byte[checkedLength(in.readInt(), body + length - pos)];
+                    in.readFully(bytes);
+                    pos += 4 + bytes.length;
+                    strings.add(new String(bytes, UTF_8));
+                }
+            }
+            int runCount = in.readInt();
+            pos += 4;
+            List<TempItems.Run> runs = new ArrayList<>(Math.min(runCount, 64));
+            for (int i = 0; i < runCount; i++) {
+                TempItems.Run run = new TempItems.Run(segment, in.readInt());
+                int blocks = in.readInt();
+                pos += 8;
+                for (int j = 0; j < blocks; j++) {
+                    int blockLength = in.readInt();
+                    int compressedLength = checkedLength(in.readInt(), body + length - pos - 8);
+                    pos += 8;
+                    run.stored(pos, compressedLength, blockLength);
+                    skip(in, compressedLength);
+                    pos += compressedLength;
+                }
+                runs.add(run);
+            }
+            if (pos != body + length || volume < 0 || volume >= volumes) {
+                return -1;
+            }
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                return -1;
+            }
+            restored.put(volume, new Volume(headings, synthetic, runs));
+            return pos + 8;
+        } catch (EOFException | IllegalArgumentException ex) {
+            return -1;
+        }
+    }
+
+    private static int checkedLength(int length, long remaining) {
+        if (length < 0 || length > remaining) {
+            throw new IllegalArgumentException("Bad length " + length);
+        }
+        return length;
+    }
+
+    private static void skip(DataInputStream in, int bytes) throws IOException {
+        // Skipping a CheckedInputStream reads the bytes, so they are checked
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * Save a volume whose records are all written, returning copies of its
+     * runs which read their blocks from the journal, so the originals can be
+     * let go of.
+     *
+     * @param volume The volume's place in the output
+     * @param headings The headings of its .dat file
+     * @param synthetic The synthetic headings its records have
+     * @param runs Its runs
+     * @return Copies of the runs, or null if an earlier save failed, after
+     * which nothing more is saved
+     * @throws IOException If the journal cannot be written
+     */
+    synchronized List<TempItems.Run> save(int volume, Collection<String> headings,
+            Collection<String> synthetic, List<TempItems.Run> runs) throws IOException {
+        if (broken) {
+            return null;
+        }
+        long start = size;
+        try {
+            // Zero until the record is complete
+            write(ByteBuffer.allocate(8), start);
+            Writer out = new Writer(start + 8);
+            out.writeInt(volume);
+            for (Collection<String> strings : Arrays.asList(headings, synthetic)) {
+                out.writeInt(strings.size());
+                for (String s : strings) {
+                    byte[] bytes = s.getBytes(UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes, 0, bytes.length);
+                }
+            }
+            out.writeInt(runs.size());
+            List<TempItems.Run> result = new ArrayList<>(runs.size());
+            for (TempItems.Run run : runs) {
+                TempItems.Run copy = new TempItems.Run(segment, run.records());
+                out.writeInt(run.records());
+                out.writeInt(run.blockCount());
+                run.blocks((compressed, compressedLength, length) -> {
+                    out.writeInt(length);
+                    out.writeInt(compressedLength);
+                    copy.stored(out.position(), compressedLength, length);
+                    out.write(compressed, 0, compressedLength);
+                });
+                result.add(copy);
+            }
+            long end = out.position();
+            out.writeLong(out.crc.getValue());
+            out.flush();
+            channel.force(false);
+            ByteBuffer length = ByteBuffer.allocate(8);
+            length.putLong(0, end - start - 8);
+            write(length, start);
+            channel.force(false);
+            size = end + 8;
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            broken = true;
+            if (channel.isOpen()) {
+                try {
+                    channel.truncate(start);
+                } catch (IOException ex1) {
+                    ex.addSuppressed(ex1);
+                }
+            }
+            throw ex;
+        }
+    }
+
+    private void write(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    private void read(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int count = channel.read(buf, pos);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            pos += count;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            segment.close();
+        }
+    }
+
+    /**
+     * Close and delete the journal, once the output it was for is written.
+     *
+     * @throws IOException If it cannot be deleted
+     */
+    synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * A volume saved by an earlier run.
+     */
+    static final class Volume {
+
+        private final List<String> headings;
+        private final List<String> synthetic;
+        private final List<TempItems.Run> runs;
+
+        Volume(List<String> headings, List<String> synthetic, List<TempItems.Run> runs) {
+            this.headings = headings;
+            this.synthetic = synthetic;
+            this.runs = runs;
+        }
+
+        List<String> headings() {
+            return headings;
+        }
+
+        List<String> synthetic() {
+            return synthetic;
+        }
+
+        List<TempItems.Run> runs() {
+            return runs;
+        }
+    }
+
+    /**
+     * Buffers writes of a record, tracking its position in the file and its
+     * checksum.
+     */
+    private final class Writer {
+
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private long pos;
+
+        Writer(long pos) {
+            this.pos = pos;
+        }
+
+        long position() {
+            return pos + buf.position();
+        }
+
+        void writeInt(int value) throws IOException {
+            if (buf.remaining() < 4) {
+                flush();
+            }
+            buf.putInt(value);
+            crc.update(buf.array(), buf.position() - 4, 4);
+        }
+
+        void writeLong(long value) throws IOException {
+            if (buf.remaining() < 8) {
+                flush();
+            }
+            buf.putLong(value);
+        }
+
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            crc.update(bytes, offset, length);
+            if (length > buf.remaining()) {
+                flush();
+                if (length > buf.capacity()) {
+                    Journal.this.write(ByteBuffer.wrap(bytes, offset, length), pos);
+                    pos += length;
+                    return;
+                }
+            }
+            buf.put(bytes, offset, length);
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            int count = buf.remaining();
+            Journal.this.write(buf, pos);
+            pos += count;
+            buf.clear();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.to.xls.tool;
+
+import com.mastfrog.util.file.FileUtils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Memory-mapped temp file storage for the off-heap OptDictionary. Files are
+ * mapped in 1Gb segments, since a single mapping cannot exceed 2Gb; the pages
+ * belong to the OS, not the Java heap, so they cost nothing to garbage
+ * collection and are simply paged out under memory pressure. Mappings are
+ * released as soon as their file is closed, rather than whenever the buffers
+ * are collected, since a file which is still mapped can't be deleted on
+ * Windows, and each time a table grows it would otherwise leave the old one
+ * mapped.
+ *
+ * @author Tim Boudreau
+ */
+final class MappedOptStorage {
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    private static final Unmapper UNMAPPER = Unmapper.find();
+
+    private MappedOptStorage() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Release mappings; nothing may touch the buffers afterwards.
+     */
+    private static void unmap(MappedByteBuffer[] buffers) {
+        try {
+            for (MappedByteBuffer buf : buffers) {
+                UNMAPPER.unmap(buf);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Logger.getLogger(MappedOptStorage.class.getName()).log(Level.INFO, "Unmapping", ex);
+        }
+    }
+
+    /**
+     * Close a channel and delete its file once its mappings are released; a
+     * file which can't be deleted yet (such as one still mapped on Windows
+     * because unmapping is unavailable) is deleted on exit instead, since
+     * this is called when a table grows and must not fail the put().
+     */
+    private static void close(FileChannel channel, Path file, MappedByteBuffer[] segments) throws IOException {
+        unmap(segments);
+        try {
+            channel.close();
+        } finally {
+            try {
+                FileUtils.deleteIfExists(file);
+            } catch (IOException ex) {
+                Logger.getLogger(MappedOptStorage.class.getName()).log(Level.INFO, "Deleting " + file, ex);
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode,
+            long size, long overlap) throws IOException {
+        int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] result = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            result[i] = channel.map(mode, start, Math.min(SEGMENT_SIZE + overlap, size - start));
+        }
+        return result;
+    }
+
+    static final class MappedSlots implements OptDictionary.Slots {
+
+        private final Path file;
+        private final FileChannel channel;
+        private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+        private boolean closed;
+
+        MappedSlots(long length) throws IOException {
+            file = FileUtils.newTempFile("ccd-opt-slots");
+            channel = FileChannel.open(file, READ, WRITE);
+            try {
+                // Extending the file leaves it sparse and zero-filled
+                long size = length * Long.BYTES;
+                channel.write(ByteBuffer.allocate(1), size - 1);
+                segments = map(channel, READ_WRITE, size, 0);
+            } catch (IOException | RuntimeException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public long get(long index) {
+            long pos = index * Long.BYTES;
+            return segments[(int) (pos >>> SEGMENT_SHIFT)].getLong((int) (pos & (SEGMENT_SIZE - 1)));
+        }
+
+        @Override
+        public void set(long index, long value) {
+            long pos = index * Long.BYTES;
+            segments[(int) (pos >>> SEGMENT_SHIFT)].putLong((int) (pos & (SEGMENT_SIZE - 1)), value);
+        }
+
+        @Override
+        public OptDictionary.Slots create(long length) throws IOException {
+            return new MappedSlots(length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                MappedByteBuffer[] mapped = segments;
+                segments = new MappedByteBuffer[0];
+                MappedOptStorage.close(channel, file, mapped);
+            }
+        }
+    }
+
+    static final class MappedArena implements OptDictionary.Arena {
+
+        private final Path file;
+        private final FileChannel channel;
+        private final ByteBuffer pending = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        private long written;
+        private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+        private boolean closed;
+
+        MappedArena() throws IOException {
+            file = FileUtils.newTempFile("ccd-opt-paths");
+            channel = FileChannel.open(file, READ, WRITE);
+        }
+
+        @Override
+        public long store(byte[] bytes, int offset, int length) throws IOException {
+            if (pending.remaining() < length) {
+                flush();
+            }
+            long result = written + pending.position();
+            if (length > pending.capacity()) {
+                ByteBuffer buf = ByteBuffer.wrap(bytes, offset, length);
+                while (buf.hasRemaining()) {
+                    written += channel.write(buf, written);
+                }
+            } else {
+                pending.put(bytes, offset, length);
+            }
+            return result;
+        }
+
+        private void flush() throws IOException {
+            pending.flip();
+            while (pending.hasRemaining()) {
+                written += channel.write(pending, written);
+            }
+            pending.clear();
+        }
+
+        @Override
+        public void seal() throws IOException {
+            flush();
+            // Segments overlap by the maximum path length, so no path is ever
+            // split across two of them
+            segments = written == 0 ? new MappedByteBuffer[0]
+                    : map(channel, READ_ONLY, written, OptDictionary.MAX_PATH_BYTES);
+        }
+
+        @Override
+        public void read(long address, byte[] into, int offset, int length) throws IOException {
+            if (address >= written) {
+                // Still in the write buffer
+                int pos = (int) (address - written);
+                for (int i = 0; i < length; i++) {
+                    into[offset + i] = pending.get(pos + i);
+                }
+                return;
+            }
+            if (address + length > written) {
+                flush();
+            }
+            ByteBuffer buf = ByteBuffer.wrap(into, offset, length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, address + buf.position() - offset) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+        }
+
+        @Override
+        public void copy(long address, byte[] into, int offset, int length) {
+            MappedByteBuffer seg = segments[(int) (address >>> SEGMENT_SHIFT)];
+            int pos = (int) (address & (SEGMENT_SIZE - 1));
+            for (int i = 0; i < length; i++) {
+                into[offset + i] = seg.get(pos + i);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                MappedByteBuffer[] mapped = segments;
+                segments = new MappedByteBuffer[0];
+                MappedOptStorage.close(channel, file, mapped);
+            }
+        }
+    }
+
+    /**
+     * Releases a mapping without waiting for the buffer to be collected, using
+     * Unsafe.invokeCleaner() on Java 9 and later, and the buffer's cleaner on
+     * Java 8.
+     */
+    private static final class Unmapper {
+
+        private final Object unsafe;
+        private final Method invokeCleaner;
+
+        private Unmapper(Object unsafe, Method invokeCleaner) {
+            this.unsafe = unsafe;
+            this.invokeCleaner = invokeCleaner;
+        }
+
+        static Unmapper find() {
+            try {
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = type.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return new Unmapper(field.get(null), invokeCleaner);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                // Java 8
+                return new Unmapper(null, null);
+            }
+        }
+
+        void unmap(MappedByteBuffer buf) throws ReflectiveOperationException {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buf);
+                return;
+            }
+            Method cleaner = buf.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buf);
+            if (c != null) {
+                c.getClass().getMethod("clean").invoke(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.to.xls.tool;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the parsed contents of each .opt file in a binary cache file, keyed by
+ * the .opt file's path, size and modification time, so re-exporting the same
+ * production with different filters or formats does not re-parse every .opt
+ * file - the cache file is mapped and its entries fed straight into the
+ * dictionary, and only volumes which changed are parsed again.
+ * <p>
+ * Format: a header (magic, version, size, mtime, source path), then records
+ * which either define a prefix (id order) or describe one entry in file order,
+ * then an end record holding the entry count, so an incomplete file is never
+ * used.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class OptCache {
+
+    private static final int MAGIC = 0x4343_444F; // CCDO
+    private static final int VERSION = 1;
+    private static final byte PREFIX = 0;
+    private static final byte ENTRY = 1;
+    private static final byte END = 2;
+    private final Path dir;
+
+    OptCache(Path dir) {
+        this.dir = dir;
+    }
+
+    static Path defaultDir() {
+        return Paths.get(System.getProperty("user.home"), ".concordance-to-xls", "opt-cache");
+    }
+
+    /**
+     * Load the cached entries for an .opt file into a dictionary, if there is
+     * an up-to-date cache file for it.
+     *
+     * @param optFile The .opt file
+     * @param dict The dictionary
+     * @return The number of entries loaded, or -1 if there is no usable cache
+     * @throws IOException If the dictionary cannot be written
+     */
+    int load(Path optFile, OptDictionary dict) throws IOException {
+        Path file = cacheFile(optFile);
+        if (!Files.exists(file)) {
+            return -1;
+        }
+        MappedByteBuffer buf;
+        try ( FileChannel channel = FileChannel.open(file, READ)) {
+            buf = channel.map(READ_ONLY, 0, channel.size());
+        }
+        int count;
+        try {
+            count = validate(buf, optFile);
+        } catch (RuntimeException ex) {
+            // Garbage in the header
+            return -1;
+        }
+        if (count < 0) {
+            return -1;
+        }
+        try {
+            List<String> prefixes = new ArrayList<>();
+            byte[] bytes = new byte[256];
+            for (int entries = 0; entries < count;) {
+                switch (buf.get()) {
+                    case PREFIX:
+                        prefixes.add(string(buf));
+                        break;
+                    case ENTRY:
+                        String volumePrefix = prefixes.get(buf.getInt());
+                        int volumeIndex = buf.getInt();
+                        String itemPrefix = prefixes.get(buf.getInt());
+                        int itemIndex = buf.getInt();
+                        int length = buf.getInt();
+                        if (length > bytes.length) {
+                            bytes = new byte[length];
+                        }
+                        buf.get(bytes, 0, length);
+                        dict.put(volumePrefix, volumeIndex, itemPrefix, itemIndex, bytes, 0, length);
+                        entries++;
+                        break;
+                    default:
+                        return corrupt(file, optFile, null);
+                }
+            }
+            return count;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            return corrupt(file, optFile, ex);
+        }
+    }
+
+    /**
+     * Delete a cache file whose header checked out but whose contents did
+     * not, so the .opt file gets parsed again; anything already loaded from
+     * it is harmless, since the dictionary keeps the last entry put for an
+     * item.
+     */
+    private static int corrupt(Path file, Path optFile, Exception ex) {
+        Logger.getLogger(OptCache.class.getName()).log(Level.WARNING,
+                "Corrupt cache file " + file + " for " + optFile, ex);
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex1) {
+            Logger.getLogger(OptCache.class.getName()).log(Level.INFO, "Deleting " + file, ex1);
+        }
+        return -1;
+    }
+
+    private int validate(ByteBuffer buf, Path optFile) throws IOException {
+        // Check the header and end record before anything is loaded, so a
+        // stale or truncated file is simply ignored
+        if (buf.limit() < 28 + 9 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            return -1;
+        }
+        if (buf.getLong() != Files.size(optFile)
+                || buf.getLong() != Files.getLastModifiedTime(optFile).toMillis()
+                || !key(optFile).equals(string(buf))) {
+            return -1;
+        }
+        int end = buf.limit() - 9;
+        if (buf.get(end) != END || buf.getInt(end + 5) != MAGIC) {
+            return -1;
+        }
+        return buf.getInt(end + 1);
+    }
+
+    /**
+     * Create a writer which records the entries of an .opt file as it is
+     * parsed; nothing replaces the existing cache file unless it is committed.
+     *
+     * @param optFile The .opt file
+     * @return A writer
+     * @throws IOException If the cache directory is not writable
+     */
+    Writer writer(Path optFile) throws IOException {
+        Files.createDirectories(dir);
+        Path target = cacheFile(optFile);
+        Path temp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+        long size = Files.size(optFile);
+        long modified = Files.getLastModifiedTime(optFile).toMillis();
+        return new Writer(temp, target, key(optFile), size, modified);
+    }
+
+    private Path cacheFile(Path optFile) throws IOException {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key(optFile).getBytes(UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2 + 4);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return dir.resolve(sb.append(".opt").toString());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static String key(Path optFile) {
+        // Distinguishes files inside zip archives, too
+        return optFile.toAbsolutePath().toUri().toString();
+    }
+
+    private static String string(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    static final class Writer implements AutoCloseable {
+
+        private final Path temp;
+        private final Path target;
+        private final DataOutputStream out;
+        private final Map<String, Integer> prefixes = new HashMap<>();
+        private int count;
+        private boolean committed;
+
+        Writer(Path temp, Path target, String key, long size, long modified) throws IOException {
+            this.temp = temp;
+            this.target = target;
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 256 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeLong(modified);
+            writeString(key);
+        }
+
+        void add(ItemKey volume, ItemKey item, byte[] path) throws IOException {
+            int volumePrefix = prefix(volume.prefix());
+            int itemPrefix = prefix(item.prefix());
+            out.writeByte(ENTRY);
+            out.writeInt(volumePrefix);
+            out.writeInt(volume.index());
+            out.writeInt(itemPrefix);
+            out.writeInt(item.index());
+            out.writeInt(path.length);
+            out.write(path);
+            count++;
+        }
+
+        private int prefix(String prefix) throws IOException {
+            Integer result = prefixes.get(prefix);
+            if (result == null) {
+                result = prefixes.size();
+                prefixes.put(prefix, result);
+                out.writeByte(PREFIX);
+                writeString(prefix);
+            }
+            return result;
+        }
+
+        private void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void commit() throws IOException {
+            out.writeByte(END);
+            out.writeInt(count);
+            out.writeInt(MAGIC);
+            out.close();
+            Files.move(temp, target, REPLACE_EXISTING, ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() {
+            if (!committed) {
+                try {
+                    out.close();
+                    Files.deleteIfExists(temp);
+                } catch (IOException ex) {
+                    Logger.getLogger(OptCache.class.getName()).log(Level.INFO, "Deleting " + temp, ex);
+                }
+            }
+        }
+    }
+}
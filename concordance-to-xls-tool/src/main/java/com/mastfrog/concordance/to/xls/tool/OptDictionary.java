@@ -0,0 +1,1062 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.to.xls.tool;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps (volume, item) keys from .opt files to relative paths, without an
+ * object per entry. Prefixes are interned to int ids, keys are packed into
+ * pairs of longs in open-addressed tables of primitive slots, and path bytes
+ * live in a shared arena. Full paths only ever exist as bytes in a lookup's
+ * buffer, when a match is actually written out.
+ * <p>
+ * Millions of paths share a few hundred directories, so directories are
+ * stored once, in a directory table, and entries hold only a directory id and
+ * the bytes of the file name.
+ * </p>
+ * <p>
+ * Item ids within a volume are almost always consecutive, with paths that
+ * differ only in the number, e.g. <code>\VOL001\IMAGES\001\SOMECASE0000018.jpg</code>,
+ * so entries are folded into blocks of 64 consecutive items: one slot holding
+ * a path template (the bytes before and after the number, and its zero-padded
+ * width) plus a bitmask of which items in the block follow it. Anything
+ * irregular goes in a table with one slot per entry, and an entry is never in
+ * both, so a lookup is one probe for the common case, and the last entry added
+ * for a key still wins.
+ * </p>
+ * <p>
+ * .dat files also refer to items listed in other volumes' .opt files, so an
+ * owner table maps each block of 64 item ids to the (few) volumes which list
+ * any of them - or, for the rare block listed by more volumes than that, each
+ * of its items to the volumes listing it - so an item resolves wherever it
+ * lives without trying every volume.
+ * </p>
+ * <p>
+ * Most cells which look like document IDs are not in the dictionary, so once
+ * loaded, two Bloom filters sit in front of the tables - one of exact (volume,
+ * item) keys and one of bare item keys in any volume - and reject most misses
+ * without probing them.
+ * </p>
+ * <p>
+ * The tables and arena live either on the heap or, for productions larger
+ * than RAM, in memory-mapped temp files, so .dat processing probes them
+ * without touching the Java heap.
+ * </p>
+ * <p>
+ * Entries are added concurrently while .opt files load. .dat processing for a
+ * volume can begin as soon as the .opt files it depends on are in, so lookups
+ * made before <code>loaded()</code> take the same lock as adding entries, see
+ * only what has been added so far, and skip the filters; after it they are
+ * not synchronized at all.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class OptDictionary implements AutoCloseable {
+
+    static final int LENGTH_BITS = 20;
+    static final int MAX_PATH_BYTES = (1 << LENGTH_BITS) - 1;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+    // Template references are arena address, number width, head and tail length
+    private static final int PART_BITS = 12;
+    private static final int MAX_PART = (1 << PART_BITS) - 1;
+    private static final int MAX_WIDTH = 15;
+    private final Map<String, Integer> prefixIds = new HashMap<>();
+    private final List<String> prefixes = new ArrayList<>();
+    // Open-addressed copy of the prefixes, for matching text without substrings
+    private String[] prefixTable = new String[1];
+    private int[] prefixTableIds = new int[1];
+    private final Arena arena;
+    // volume, item -> file name reference, directory id
+    private final Table entries;
+    // Directory id -> reference to its bytes, including the trailing separator
+    private final Map<String, Integer> dirIds = new HashMap<>();
+    private long[] dirs = new long[64];
+    // volume, item prefix + block number -> (bitmask, template reference) * 2
+    private final Table blocks;
+    private static final int TEMPLATES = 2;
+    // item prefix + block number -> volumes listing items in it, ascending;
+    // a block listed by more volumes than fit is marked OVERFLOW
+    private final Table owners;
+    private static final int OWNERS = 3;
+    private static final long OVERFLOW = -1;
+    private long size;
+    private byte[] scratch = new byte[256];
+    // The head and tail of the last template compared against while loading
+    private long cachedTemplate;
+    private byte[] templateBytes = new byte[256];
+    // Built by loaded()
+    private Filter exactFilter;
+    private Filter itemFilter;
+    private volatile boolean sealed;
+
+    private OptDictionary(Slots entrySlots, Slots blockSlots, Slots ownerSlots, Arena arena) {
+        this.entries = new Table(entrySlots, 2);
+        this.blocks = new Table(blockSlots, TEMPLATES * 2);
+        this.owners = new Table(ownerSlots, OWNERS);
+        this.arena = arena;
+        // Id 0 is reserved, so a packed key is never 0, which marks a free slot
+        prefixes.add(null);
+    }
+
+    static OptDictionary onHeap() {
+        return new OptDictionary(new HeapSlots(INITIAL_CAPACITY * 4),
+                new HeapSlots(INITIAL_CAPACITY * (2 + TEMPLATES * 2)),
+                new HeapSlots(INITIAL_CAPACITY * (2 + OWNERS)), new HeapArena());
+    }
+
+    static OptDictionary offHeap() throws IOException {
+        List<AutoCloseable> created = new ArrayList<>(4);
+        try {
+            Slots entrySlots = new MappedOptStorage.MappedSlots(INITIAL_CAPACITY * 4);
+            created.add(entrySlots);
+            Slots blockSlots = new MappedOptStorage.MappedSlots(INITIAL_CAPACITY * (2 + TEMPLATES * 2));
+            created.add(blockSlots);
+            Slots ownerSlots = new MappedOptStorage.MappedSlots(INITIAL_CAPACITY * (2 + OWNERS));
+            created.add(ownerSlots);
+            return new OptDictionary(entrySlots, blockSlots, ownerSlots, new MappedOptStorage.MappedArena());
+        } catch (IOException | RuntimeException ex) {
+            for (AutoCloseable c : created) {
+                try {
+                    c.close();
+                } catch (Exception ex1) {
+                    ex.addSuppressed(ex1);
+                }
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Add an entry, replacing any previous entry with the same key.
+     *
+     * @param volume The volume key from the .opt line
+     * @param item The item key from the .opt line
+     * @param path The relative path as UTF-8
+     * @throws IOException If the off-heap storage cannot be written
+     */
+    void put(ItemKey volume, ItemKey item, byte[] path) throws IOException {
+        put(volume.prefix(), volume.index(), item.prefix(), item.index(), path, 0, path.length);
+    }
+
+    synchronized void put(String volumePrefix, int volumeIndex, String itemPrefix, int itemIndex,
+            byte[] path, int offset, int length) throws IOException {
+        if (length > MAX_PATH_BYTES) {
+            throw new IllegalArgumentException("Path too long: " + length + " bytes");
+        }
+        int itemPrefixId = intern(itemPrefix);
+        long vol = pack(intern(volumePrefix), volumeIndex);
+        long itm = pack(itemPrefixId, itemIndex);
+        own(pack(itemPrefixId, itemIndex >>> BLOCK_SHIFT), 0, vol);
+        if (entries.find(vol, itm) < 0) {
+            if (putInBlock(vol, pack(itemPrefixId, itemIndex >>> BLOCK_SHIFT), itemIndex, path, offset, length)) {
+                return;
+            }
+            size++;
+        }
+        int dirLength = 0;
+        for (int i = offset + length - 1; i >= offset; i--) {
+            if (path[i] == '/' || path[i] == '\\') {
+                dirLength = i + 1 - offset;
+                break;
+            }
+        }
+        int dir = dir(path, offset, dirLength);
+        int nameLength = length - dirLength;
+        long ref = (arena.store(path, offset + dirLength, nameLength) << LENGTH_BITS) | nameLength;
+        long slot = entries.slot(vol, itm);
+        entries.value(slot, 0, ref);
+        entries.value(slot, 1, dir);
+    }
+
+    /**
+     * Record that a volume lists an item in a block (item 0), or, for blocks
+     * which overflowed, the item itself (1 + its index in the block).
+     */
+    private void own(long blockKey, long item, long vol) throws IOException {
+        long slot = owners.slot(blockKey, item);
+        int count = 0;
+        for (; count < OWNERS; count++) {
+            long owner = owners.value(slot, count);
+            if (owner == vol || owner == OVERFLOW) {
+                return;
+            } else if (owner == 0) {
+                break;
+            }
+        }
+        if (count == OWNERS) {
+            if (item == 0) {
+                owners.value(slot, 0, OVERFLOW);
+                return;
+            } else if (owners.value(slot, OWNERS - 1) < vol) {
+                // An item always resolves in the lowest volume listing it
+                return;
+            }
+            count--;
+        }
+        // Keep them sorted, so the order volumes are loaded in doesn't matter
+        int i = count;
+        for (; i > 0 && owners.value(slot, i - 1) > vol; i--) {
+            owners.value(slot, i, owners.value(slot, i - 1));
+        }
+        owners.value(slot, i, vol);
+    }
+
+    private void ownItem(long vol, long itm) throws IOException {
+        long blockKey = (itm & 0xFFFF_FFFF_0000_0000L) | ((itm & 0xFFFF_FFFFL) >>> BLOCK_SHIFT);
+        long slot = owners.find(blockKey, 0);
+        if (slot >= 0 && owners.value(slot, 0) == OVERFLOW) {
+            own(blockKey, 1 + (itm & BLOCK_MASK), vol);
+        }
+    }
+
+    private int dir(byte[] path, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        // Only while loading, and only a few hundred of them
+        String key = new String(path, offset, length, ISO_8859_1);
+        Integer result = dirIds.get(key);
+        if (result == null) {
+            result = dirIds.size() + 1;
+            if (result == dirs.length) {
+                dirs = Arrays.copyOf(dirs, dirs.length * 2);
+            }
+            dirs[result] = (arena.store(path, offset, length) << LENGTH_BITS) | length;
+            dirIds.put(key, result);
+        }
+        return result;
+    }
+
+    private boolean putInBlock(long vol, long blockKey, int itemIndex, byte[] path,
+            int offset, int length) throws IOException {
+        long bit = 1L << (itemIndex & BLOCK_MASK);
+        long block = blocks.find(vol, blockKey);
+        if (block >= 0) {
+            for (int t = 0; t < TEMPLATES * 2; t += 2) {
+                long present = blocks.value(block, t);
+                if ((present & bit) != 0) {
+                    if (matches(blocks.value(block, t + 1), itemIndex, path, offset, length)) {
+                        return true;
+                    }
+                    // Replaced by something that doesn't fit - it moves to the entries
+                    blocks.value(block, t, present & ~bit);
+                    size--;
+                    return false;
+                }
+            }
+            for (int t = 0; t < TEMPLATES * 2; t += 2) {
+                long template = blocks.value(block, t + 1);
+                if (template == 0) {
+                    // Typically the directory changed part way through the block
+                    template = template(itemIndex, path, offset, length);
+                    if (template < 0) {
+                        return false;
+                    }
+                    blocks.value(block, t + 1, template);
+                } else if (!matches(template, itemIndex, path, offset, length)) {
+                    continue;
+                }
+                blocks.value(block, t, blocks.value(block, t) | bit);
+                size++;
+                return true;
+            }
+            return false;
+        }
+        long template = template(itemIndex, path, offset, length);
+        if (template < 0) {
+            return false;
+        }
+        block = blocks.slot(vol, blockKey);
+        blocks.value(block, 0, bit);
+        blocks.value(block, 1, template);
+        size++;
+        return true;
+    }
+
+    /**
+     * Called once all entries have been added, before any lookups.
+     *
+     * @throws IOException If the off-heap storage cannot be mapped
+     */
+    synchronized void loaded() throws IOException {
+        arena.seal();
+        scratch = null;
+        templateBytes = null;
+        int capacity = Integer.highestOneBit(Math.max(1, prefixes.size() * 2 - 1)) * 2;
+        String[] table = new String[capacity];
+        int[] ids = new int[capacity];
+        for (int id = 1; id < prefixes.size(); id++) {
+            String prefix = prefixes.get(id);
+            int slot = prefixHash(prefix, prefix.length()) & (capacity - 1);
+            while (table[slot] != null) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            table[slot] = prefix;
+            ids[slot] = id;
+        }
+        prefixTable = table;
+        prefixTableIds = ids;
+        index();
+        sealed = true;
+    }
+
+    /**
+     * Determine if all entries have been added, and lookups are final and
+     * unsynchronized.
+     */
+    boolean isLoaded() {
+        return sealed;
+    }
+
+    /**
+     * Build the filters, and owner entries for individual items in blocks
+     * listed by too many volumes to track per block.
+     */
+    private void index() throws IOException {
+        Filter exact = new Filter(entries.slots, size);
+        try {
+            Filter items = new Filter(entries.slots, size);
+            try {
+                for (long i = 0; i < entries.length(); i += entries.width) {
+                    long vol = entries.slots.get(i);
+                    if (vol != 0) {
+                        long itm = entries.slots.get(i + 1);
+                        exact.add(hash(vol, itm));
+                        items.add(hash(0, itm));
+                        ownItem(vol, itm);
+                    }
+                }
+                for (long i = 0; i < blocks.length(); i += blocks.width) {
+                    long vol = blocks.slots.get(i);
+                    if (vol != 0) {
+                        long blockKey = blocks.slots.get(i + 1);
+                        long present = 0;
+                        for (int t = 0; t < TEMPLATES * 2; t += 2) {
+                            present |= blocks.value(i, t);
+                        }
+                        long first = pack((int) (blockKey >>> 32), (int) blockKey << BLOCK_SHIFT);
+                        for (; present != 0; present &= present - 1) {
+                            long itm = first | Long.numberOfTrailingZeros(present);
+                            exact.add(hash(vol, itm));
+                            items.add(hash(0, itm));
+                            ownItem(vol, itm);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                items.close();
+                throw ex;
+            }
+            itemFilter = items;
+        } catch (IOException | RuntimeException ex) {
+            exact.close();
+            throw ex;
+        }
+        exactFilter = exact;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Get the id of a prefix, or 0 if no entry uses it.
+     *
+     * @param prefix A prefix
+     * @return An id
+     */
+    int prefixId(String prefix) {
+        if (!sealed) {
+            synchronized (this) {
+                Integer result = prefixIds.get(prefix);
+                return result == null ? 0 : result;
+            }
+        }
+        Integer result = prefixIds.get(prefix);
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * Get the id of the prefix at the start of some text, e.g. a cell in a
+     * .dat file, or 0 if no entry uses it.
+     *
+     * @param txt Some text
+     * @param length The length of the prefix
+     * @return An id
+     */
+    int prefixId(CharSequence txt, int length) {
+        if (!sealed) {
+            // The table is built by loaded()
+            return prefixId(txt.subSequence(0, length).toString());
+        }
+        String[] table = prefixTable;
+        int mask = table.length - 1;
+        for (int slot = prefixHash(txt, length) & mask;; slot = (slot + 1) & mask) {
+            String prefix = table[slot];
+            if (prefix == null) {
+                return 0;
+            } else if (prefix.length() == length && startsWith(txt, prefix)) {
+                return prefixTableIds[slot];
+            }
+        }
+    }
+
+    private static boolean startsWith(CharSequence txt, String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            if (txt.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int prefixHash(CharSequence txt, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + txt.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Determine if an item may be present in any volume, so a cell need not be
+     * looked up against its own and neighbouring volumes; always true for
+     * known prefixes until loaded.
+     *
+     * @param itemPrefix The id of the item prefix
+     * @param itemIndex The numeric part of the item
+     * @return false if the item is definitely not present
+     */
+    boolean mayContain(int itemPrefix, int itemIndex) {
+        if (!sealed) {
+            return itemPrefix != 0;
+        }
+        return itemPrefix != 0 && itemFilter.mayContain(hash(0, pack(itemPrefix, itemIndex)));
+    }
+
+    /**
+     * Create a lookup, which holds the path bytes of the last match; each
+     * thread needs its own.
+     *
+     * @return A lookup
+     */
+    Lookup lookup() {
+        return new Lookup();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // Release everything even if one fails, so no mapping outlives a
+        // cancelled or failed run
+        IOException failure = null;
+        for (AutoCloseable c : new AutoCloseable[]{entries.slots, blocks.slots,
+            owners.slots, exactFilter == null ? null : exactFilter.bits,
+            itemFilter == null ? null : itemFilter.bits, arena}) {
+            if (c == null) {
+                continue;
+            }
+            try {
+                c.close();
+            } catch (Exception ex) {
+                IOException ioe = ex instanceof IOException ? (IOException) ex : new IOException(ex);
+                if (failure == null) {
+                    failure = ioe;
+                } else {
+                    failure.addSuppressed(ioe);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private int intern(String prefix) {
+        Integer result = prefixIds.get(prefix);
+        if (result == null) {
+            result = prefixes.size();
+            prefixes.add(prefix);
+            prefixIds.put(prefix, result);
+        }
+        return result;
+    }
+
+    /**
+     * Find the item number in a path - the last run of digits with the same
+     * numeric value - and store the bytes around it as a template.
+     *
+     * @return A template reference, or -1 if the path does not contain the
+     * number in a usable form
+     */
+    private long template(int itemIndex, byte[] path, int offset, int length) throws IOException {
+        int end = offset + length;
+        for (int i = end - 1; i >= offset; i--) {
+            if (isDigit(path[i])) {
+                int runEnd = i + 1;
+                long value = 0;
+                long scale = 1;
+                while (i >= offset && isDigit(path[i])) {
+                    if (runEnd - i <= 10) {
+                        value += (path[i] - '0') * scale;
+                        scale *= 10;
+                    }
+                    i--;
+                }
+                int width = runEnd - (i + 1);
+                if (width <= MAX_WIDTH && width <= 10 && value == itemIndex) {
+                    int headLength = i + 1 - offset;
+                    int tailLength = end - runEnd;
+                    if (headLength > MAX_PART || tailLength > MAX_PART) {
+                        return -1;
+                    }
+                    byte[] bytes = scratch(headLength + tailLength);
+                    System.arraycopy(path, offset, bytes, 0, headLength);
+                    System.arraycopy(path, runEnd, bytes, headLength, tailLength);
+                    long address = arena.store(bytes, 0, headLength + tailLength);
+                    return (address << (PART_BITS * 2 + 4)) | ((long) width << (PART_BITS * 2))
+                            | ((long) headLength << PART_BITS) | tailLength;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(long template, int itemIndex, byte[] path, int offset, int length)
+            throws IOException {
+        int head = templateHead(template);
+        int tail = templateTail(template);
+        int digits = Math.max(templateWidth(template), digits(itemIndex));
+        if (length != head + digits + tail) {
+            return false;
+        }
+        if (template != cachedTemplate) {
+            // Off-heap arenas are not mapped until loading is done, so read
+            if (templateBytes.length < head + tail) {
+                templateBytes = new byte[head + tail];
+            }
+            arena.read(template >>> (PART_BITS * 2 + 4), templateBytes, 0, head + tail);
+            cachedTemplate = template;
+        }
+        for (int i = 0; i < head; i++) {
+            if (templateBytes[i] != path[offset + i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < tail; i++) {
+            if (templateBytes[head + i] != path[offset + head + digits + i]) {
+                return false;
+            }
+        }
+        for (int i = head + digits - 1, val = itemIndex; i >= head; i--, val /= 10) {
+            if (path[offset + i] != '0' + val % 10) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int formatTemplate(long template, int itemIndex, byte[] into, int offset) {
+        int head = templateHead(template);
+        int tail = templateTail(template);
+        int digits = Math.max(templateWidth(template), digits(itemIndex));
+        long address = template >>> (PART_BITS * 2 + 4);
+        copy(address, into, offset, head);
+        int pos = offset + head + digits;
+        for (int i = 0, val = itemIndex; i < digits; i++, val /= 10) {
+            into[--pos] = (byte) ('0' + val % 10);
+        }
+        copy(address + head, into, offset + head + digits, tail);
+        return head + digits + tail;
+    }
+
+    private void copy(long address, byte[] into, int offset, int length) {
+        if (sealed) {
+            arena.copy(address, into, offset, length);
+            return;
+        }
+        // Still loading, and under the lock, so the arena can be read but not copied
+        try {
+            arena.read(address, into, offset, length);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static int templateLength(long template, int itemIndex) {
+        return templateHead(template) + templateTail(template)
+                + Math.max(templateWidth(template), digits(itemIndex));
+    }
+
+    private static int templateWidth(long template) {
+        return (int) (template >>> (PART_BITS * 2)) & 0xF;
+    }
+
+    private static int templateHead(long template) {
+        return (int) (template >>> PART_BITS) & MAX_PART;
+    }
+
+    private static int templateTail(long template) {
+        return (int) template & MAX_PART;
+    }
+
+    private byte[] scratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        return scratch;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int digits(int value) {
+        int result = 1;
+        while (value >= 10) {
+            value /= 10;
+            result++;
+        }
+        return result;
+    }
+
+    private static long pack(int prefixId, int index) {
+        return ((long) prefixId << 32) | (index & 0xFFFF_FFFFL);
+    }
+
+    private static long hash(long k1, long k2) {
+        long h = k1 * 0x9E37_79B9_7F4A_7C15L ^ k2;
+        h ^= h >>> 29;
+        h *= 0xBF58_476D_1CE4_E5B9L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * Finds paths; holds the bytes of the last one found, which are valid
+     * until the next call to find().
+     */
+    final class Lookup {
+
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        /**
+         * Look up a path.
+         *
+         * @param volumePrefix The id of the volume prefix
+         * @param volumeIndex The numeric part of the volume
+         * @param itemPrefix The id of the item prefix
+         * @param itemIndex The numeric part of the item
+         * @return true if it was found
+         */
+        boolean find(int volumePrefix, int volumeIndex, int itemPrefix, int itemIndex) {
+            if (volumePrefix == 0 || itemPrefix == 0) {
+                return false;
+            }
+            if (!sealed) {
+                synchronized (OptDictionary.this) {
+                    return find(pack(volumePrefix, volumeIndex), itemPrefix, itemIndex);
+                }
+            }
+            return find(pack(volumePrefix, volumeIndex), itemPrefix, itemIndex);
+        }
+
+        /**
+         * Look up a path in the given volume or, failing that, in whichever
+         * other volume's .opt file lists the item (the lowest, if several do).
+         *
+         * @param volumePrefix The id of the volume prefix
+         * @param volumeIndex The numeric part of the volume
+         * @param itemPrefix The id of the item prefix
+         * @param itemIndex The numeric part of the item
+         * @return true if it was found
+         */
+        boolean findInAnyVolume(int volumePrefix, int volumeIndex, int itemPrefix, int itemIndex) {
+            if (itemPrefix == 0) {
+                return false;
+            }
+            if (!sealed) {
+                synchronized (OptDictionary.this) {
+                    return findInOwners(volumePrefix, volumeIndex, itemPrefix, itemIndex);
+                }
+            }
+            return findInOwners(volumePrefix, volumeIndex, itemPrefix, itemIndex);
+        }
+
+        private boolean findInOwners(int volumePrefix, int volumeIndex, int itemPrefix, int itemIndex) {
+            long vol = volumePrefix == 0 ? 0 : pack(volumePrefix, volumeIndex);
+            if (vol != 0 && find(vol, itemPrefix, itemIndex)) {
+                return true;
+            }
+            long blockKey = pack(itemPrefix, itemIndex >>> BLOCK_SHIFT);
+            long slot = owners.find(blockKey, 0);
+            if (slot >= 0 && owners.value(slot, 0) == OVERFLOW) {
+                slot = owners.find(blockKey, 1 + (itemIndex & BLOCK_MASK));
+            }
+            if (slot < 0) {
+                return false;
+            }
+            for (int i = 0; i < OWNERS; i++) {
+                long owner = owners.value(slot, i);
+                if (owner == 0) {
+                    break;
+                } else if (owner != vol && find(owner, itemPrefix, itemIndex)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean find(long vol, int itemPrefix, int itemIndex) {
+            if (exactFilter != null && !exactFilter.mayContain(hash(vol, pack(itemPrefix, itemIndex)))) {
+                return false;
+            }
+            long block = blocks.find(vol, pack(itemPrefix, itemIndex >>> BLOCK_SHIFT));
+            if (block >= 0) {
+                long bit = 1L << (itemIndex & BLOCK_MASK);
+                for (int t = 0; t < TEMPLATES * 2; t += 2) {
+                    if ((blocks.value(block, t) & bit) != 0) {
+                        long template = blocks.value(block, t + 1);
+                        ensure(templateLength(template, itemIndex));
+                        length = formatTemplate(template, itemIndex, bytes, 0);
+                        return true;
+                    }
+                }
+            }
+            long entry = entries.find(vol, pack(itemPrefix, itemIndex));
+            if (entry >= 0) {
+                long name = entries.value(entry, 0);
+                int dir = (int) entries.value(entry, 1);
+                long dirRef = dir == 0 ? 0 : dirs[dir];
+                int dirLength = (int) dirRef & MAX_PATH_BYTES;
+                int nameLength = (int) name & MAX_PATH_BYTES;
+                ensure(dirLength + nameLength);
+                copy(dirRef >>> LENGTH_BITS, bytes, 0, dirLength);
+                copy(name >>> LENGTH_BITS, bytes, dirLength, nameLength);
+                length = dirLength + nameLength;
+                return true;
+            }
+            return false;
+        }
+
+        private void ensure(int length) {
+            if (bytes.length < length) {
+                bytes = new byte[length];
+            }
+        }
+
+        /**
+         * The UTF-8 bytes of the last path found, starting at 0.
+         */
+        byte[] bytes() {
+            return bytes;
+        }
+
+        int length() {
+            return length;
+        }
+
+        String path() {
+            return new String(bytes, 0, length, UTF_8);
+        }
+    }
+
+    /**
+     * An open-addressed table over slots of two key longs and some values.
+     */
+    private static final class Table {
+
+        private final int width;
+        private Slots slots;
+        private long mask = INITIAL_CAPACITY - 1;
+        private long size;
+
+        Table(Slots slots, int values) {
+            this.slots = slots;
+            this.width = values + 2;
+        }
+
+        long find(long k1, long k2) {
+            Slots s = slots;
+            for (long slot = (hash(k1, k2) & mask) * width;; slot = next(slot, mask)) {
+                long v = s.get(slot);
+                if (v == 0) {
+                    return -1;
+                } else if (v == k1 && s.get(slot + 1) == k2) {
+                    return slot;
+                }
+            }
+        }
+
+        long length() {
+            return (mask + 1) * width;
+        }
+
+        long value(long slot, int index) {
+            return slots.get(slot + 2 + index);
+        }
+
+        void value(long slot, int index, long value) {
+            slots.set(slot + 2 + index, value);
+        }
+
+        /**
+         * Find or create the slot for a key.
+         */
+        long slot(long k1, long k2) throws IOException {
+            if (size + 1 > (mask + 1) * 3 / 4) {
+                grow();
+            }
+            long slot = probe(slots, mask, k1, k2);
+            if (slots.get(slot) == 0) {
+                slots.set(slot, k1);
+                slots.set(slot + 1, k2);
+                size++;
+            }
+            return slot;
+        }
+
+        private long probe(Slots slots, long mask, long k1, long k2) {
+            long slot = (hash(k1, k2) & mask) * width;
+            for (long v = slots.get(slot); v != 0; v = slots.get(slot)) {
+                if (v == k1 && slots.get(slot + 1) == k2) {
+                    break;
+                }
+                slot = next(slot, mask);
+            }
+            return slot;
+        }
+
+        private long next(long slot, long mask) {
+            long next = slot + width;
+            return next > mask * width ? 0 : next;
+        }
+
+        private void grow() throws IOException {
+            Slots old = slots;
+            long oldCapacity = mask + 1;
+            long newMask = oldCapacity * 2 - 1;
+            Slots nue = old.create((newMask + 1) * width);
+            try {
+                for (long i = 0; i < oldCapacity * width; i += width) {
+                    long k1 = old.get(i);
+                    if (k1 != 0) {
+                        long slot = probe(nue, newMask, k1, old.get(i + 1));
+                        for (int j = 0; j < width; j++) {
+                            nue.set(slot + j, old.get(i + j));
+                        }
+                    }
+                }
+            } catch (RuntimeException ex) {
+                nue.close();
+                throw ex;
+            }
+            slots = nue;
+            mask = newMask;
+            old.close();
+        }
+    }
+
+    /**
+     * A blocked Bloom filter of 64-bit key hashes: each key sets K bits within
+     * one 512-bit block, so a test touches a single cache line. At 10 bits per
+     * key the false positive rate is around 1%.
+     */
+    private static final class Filter {
+
+        private static final int BITS_PER_KEY = 10;
+        private static final int BLOCK_LONGS = 8;
+        private static final int K = 6;
+        private final Slots bits;
+        private final long blockMask;
+
+        Filter(Slots like, long keys) throws IOException {
+            long blocks = Long.highestOneBit(Math.max(1, keys * BITS_PER_KEY / (BLOCK_LONGS * 64)));
+            if (blocks * BLOCK_LONGS * 64 < keys * BITS_PER_KEY) {
+                blocks *= 2;
+            }
+            bits = like.create(blocks * BLOCK_LONGS);
+            blockMask = blocks - 1;
+        }
+
+        void add(long hash) {
+            long block = ((hash >>> 32) & blockMask) * BLOCK_LONGS;
+            long g = hash * 0x9E37_79B9_7F4A_7C15L;
+            for (int i = 0; i < K; i++, g >>>= 9) {
+                long index = block + ((g >>> 6) & (BLOCK_LONGS - 1));
+                bits.set(index, bits.get(index) | (1L << g));
+            }
+        }
+
+        boolean mayContain(long hash) {
+            long block = ((hash >>> 32) & blockMask) * BLOCK_LONGS;
+            long g = hash * 0x9E37_79B9_7F4A_7C15L;
+            for (int i = 0; i < K; i++, g >>>= 9) {
+                if ((bits.get(block + ((g >>> 6) & (BLOCK_LONGS - 1))) & (1L << g)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void close() throws IOException {
+            bits.close();
+        }
+    }
+
+    /**
+     * A fixed-length array of longs, initially all zero.
+     */
+    interface Slots extends AutoCloseable {
+
+        long get(long index);
+
+        void set(long index, long value);
+
+        Slots create(long length) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Append-only storage for path bytes.
+     */
+    interface Arena extends AutoCloseable {
+
+        /**
+         * Store some bytes.
+         *
+         * @return The address of the bytes
+         */
+        long store(byte[] bytes, int offset, int length) throws IOException;
+
+        void seal() throws IOException;
+
+        /**
+         * Read bytes while still loading.
+         */
+        void read(long address, byte[] into, int offset, int length) throws IOException;
+
+        /**
+         * Copy bytes once sealed.
+         */
+        void copy(long address, byte[] into, int offset, int length);
+
+        @Override
+        void close() throws IOException;
+    }
+
+    static final class HeapSlots implements Slots {
+
+        private final long[] values;
+
+        HeapSlots(long length) {
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Too many .opt entries to keep on the heap - "
+                        + "use the off-heap dictionary");
+            }
+            values = new long[(int) length];
+        }
+
+        @Override
+        public long get(long index) {
+            return values[(int) index];
+        }
+
+        @Override
+        public void set(long index, long value) {
+            values[(int) index] = value;
+        }
+
+        @Override
+        public Slots create(long length) {
+            return new HeapSlots(length);
+        }
+
+        @Override
+        public void close() {
+            // do nothing
+        }
+    }
+
+    static final class HeapArena implements Arena {
+
+        // Nothing is stored across a page boundary, so an address is page + offset
+        private static final int PAGE_SHIFT = LENGTH_BITS;
+        private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+        private byte[][] pages = new byte[8][];
+        private int pageCount;
+        private int pageUsed = PAGE_SIZE;
+
+        @Override
+        public long store(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                // Such as an empty path, possibly before any page exists
+                return 0;
+            }
+            if (PAGE_SIZE - pageUsed < length) {
+                if (pageCount == pages.length) {
+                    pages = Arrays.copyOf(pages, pageCount * 2);
+                }
+                pages[pageCount++] = new byte[PAGE_SIZE];
+                pageUsed = 0;
+            }
+            int result = pageUsed;
+            System.arraycopy(bytes, offset, pages[pageCount - 1], result, length);
+            pageUsed += length;
+            return ((long) (pageCount - 1) << PAGE_SHIFT) | result;
+        }
+
+        @Override
+        public void seal() {
+            // do nothing
+        }
+
+        @Override
+        public void read(long address, byte[] into, int offset, int length) {
+            copy(address, into, offset, length);
+        }
+
+        @Override
+        public void copy(long address, byte[] into, int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            System.arraycopy(pages[(int) (address >>> PAGE_SHIFT)], (int) address & (PAGE_SIZE - 1),
+                    into, offset, length);
+        }
+
+        @Override
+        public void close() {
+            pages = new byte[0][];
+        }
+    }
+}
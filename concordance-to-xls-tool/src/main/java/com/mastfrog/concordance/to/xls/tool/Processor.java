@@ -18,33 +18,43 @@
  */
 package com.mastfrog.concordance.to.xls.tool;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.mastfrog.concordance.parser.DatFileParser;
+import com.mastfrog.concordance.parser.DatHeadings;
 import com.mastfrog.concordance.parser.DatParserConsumer;
+import com.mastfrog.concordance.parser.DatRecord;
 import com.mastfrog.concordance.parser.OptConsumer;
 import com.mastfrog.concordance.parser.OptFileParser;
-import com.mastfrog.concordance.to.xls.tool.EntryKey;
 import com.mastfrog.concordance.to.xls.tool.ItemKey;
 import com.mastfrog.concordance.to.xls.tool.ProgressConsumer.ProgressTask;
-import com.mastfrog.util.collections.AtomicLinkedQueue;
-import com.mastfrog.util.file.FileUtils;
+import com.mastfrog.function.state.Bool;
 import com.mastfrog.util.strings.Strings;
+import java.io.Closeable;
 import java.io.IOException;
-import static java.lang.Integer.min;
+import java.io.InterruptedIOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,146 +65,586 @@ import java.util.logging.Logger;
 public class Processor {
 
     private static final String SYNTH_FILE_KEY_SUFFIX = ".File";
-    private static final int THREADS = Runtime.getRuntime().availableProcessors() * 2;
-    static final ExecutorService svc = Executors.newFixedThreadPool(THREADS, new TF());
-    private final AtomicLinkedQueue<FilePair> pendingOptFiles;
-    private final AtomicLinkedQueue<FilePair> pendingDatFiles;
-    private final Map<EntryKey, OptFileEntry> optDict = new ConcurrentHashMap<>();
+    // Volumes are output by prefix and number, so VOL2 comes before VOL10
+    private static final Comparator<FilePair> VOLUME_ORDER = Comparator
+            .comparing((FilePair p) -> ItemKey.of(p.volumeName()).map(ItemKey::prefix).orElse(p.volumeName()))
+            .thenComparingInt(p -> ItemKey.of(p.volumeName()).map(ItemKey::index).orElse(-1))
+            .thenComparing(FilePair::volumeName)
+            .thenComparing(p -> p.datFile().toString());
+    // .dat files bigger than this are split up and parsed on all CPU threads
+    private static final long PARALLEL_PARSE_THRESHOLD = 256L * 1024 * 1024;
+    // Records of one .dat file held back waiting for .opt files before the
+    // thread stops to wait for them
+    private static final int MAX_DEFERRED_RECORDS = 10_000;
+    private final int fileCount;
+    private final VolumeSchedule schedule;
+    // Separate limits for reading .opt files and processing .dat files
+    private final Semaphore ioPermits;
+    private final Semaphore cpuPermits;
+    private ExecutorService svc;
+    private ForkJoinPool parsePool;
+    private final AtomicInteger optFilesRemaining;
+    private final CountDownLatch dictionaryLoaded = new CountDownLatch(1);
+    private OptDictionary optDict;
+    private final TempItems tempItems;
+    // CSV and JSON rows are written out as each volume's turn comes
+    private DirectOutput direct;
+    // Each volume's place in the output
+    private final Map<FilePair, Integer> volumeOrder = new HashMap<>();
+    private final List<FilePair> ordered;
+    // Finished volumes, saved so a rerun after a crash can skip them
+    private Journal journal;
     private volatile boolean ok = true;
-    private final ObjectMapper mapper = new ObjectMapper();
     private int totalItems;
     private final Set<String> allHeadings = ConcurrentHashMap.newKeySet();
     private final Set<String> syntheticHeadings = ConcurrentHashMap.newKeySet();
     private final ConversionSettings settings;
+    private final Set<FilePair> pairs;
+    private final Cancellation cancel;
+    private final Closeable files;
 
-    public Processor(Set<FilePair> pairs, ConversionSettings settings) {
-        this.pendingOptFiles = new AtomicLinkedQueue<>(pairs);
-        this.pendingDatFiles = new AtomicLinkedQueue<>(pairs);
+    public Processor(Set<FilePair> pairs, ConversionSettings settings, Cancellation cancel) {
+        this(pairs, settings, cancel, () -> {
+        });
+    }
+
+    /**
+     * Create a processor.
+     *
+     * @param pairs The files to convert
+     * @param settings The settings
+     * @param cancel Stops the run early
+     * @param files Closed once the files will not be read again, such as the
+     * Scanner, which owns any zip archives they are in
+     */
+    Processor(Set<FilePair> pairs, ConversionSettings settings, Cancellation cancel, Closeable files) {
+        this.pairs = pairs;
+        this.cancel = cancel;
+        this.files = files;
+        this.fileCount = pairs.size();
+        this.optFilesRemaining = new AtomicInteger(pairs.size());
         this.settings = settings;
-        mapper.disable(SerializationFeature.INDENT_OUTPUT);
-        mapper.enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+        this.tempItems = new TempItems(settings.spillMemory() * 1024L * 1024, pairs.size());
+        ordered = new ArrayList<>(pairs);
+        ordered.sort(VOLUME_ORDER);
+        for (int i = 0; i < ordered.size(); i++) {
+            volumeOrder.put(ordered.get(i), i);
+        }
+        // Rows written as they go can only go out in order, so work in order
+        this.schedule = new VolumeSchedule(pairs,
+                settings.format() == OutputFormat.XLSX ? null : volumeOrder);
+        this.ioPermits = new Semaphore(settings.ioThreads());
+        this.cpuPermits = new Semaphore(settings.cpuThreads());
     }
 
     public void go(ProgressConsumer consumer) {
-        int total = pendingDatFiles.size();
-        AtomicInteger running = new AtomicInteger();
-        int th = Math.min(THREADS, total);
+        if (cancel.isCancelled()) {
+            closeFiles();
+            cancelled(consumer);
+            return;
+        }
+        try {
+            optDict = settings.offHeap() ? OptDictionary.offHeap() : OptDictionary.onHeap();
+        } catch (IOException ex) {
+            ok = false;
+            closeFiles();
+            consumer.onError("Could not create the .opt dictionary: " + ex.getMessage(), ex, true);
+            return;
+        }
+        if (settings.format() != OutputFormat.XLSX) {
+            try {
+                direct = directOutput();
+            } catch (CancellationException ex) {
+                closeDictionary();
+                closeFiles();
+                cancelled(consumer);
+                return;
+            } catch (IOException ex) {
+                ok = false;
+                closeDictionary();
+                closeFiles();
+                consumer.onError("Could not create " + settings.output() + ": " + ex.getMessage(), ex, true);
+                return;
+            }
+        }
+        if (settings.resumable()) {
+            journal = openJournal(consumer);
+        }
+        int total = fileCount;
+        AtomicInteger completed = new AtomicInteger();
+        int th = Math.min(Math.max(settings.ioThreads(), settings.cpuThreads()), total);
+        // Count every worker up front, so one which exits early on cancel
+        // can't close the dictionary before the rest have started
+        AtomicInteger running = new AtomicInteger(th);
+        svc = Executors.newFixedThreadPool(Math.max(1, th), new TF());
         for (int thread = 0; thread < th; thread++) {
-            running.getAndIncrement();
-            svc.submit(processOptFiles(thread, total, running, consumer));
+            svc.submit(process(thread, total, completed, running, consumer));
+        }
+        // Interrupting the workers gets them out of waits and channel I/O
+        cancel.onCancel(this::interruptPools);
+    }
+
+    private Journal openJournal(ProgressConsumer c) {
+        try {
+            Journal result = Journal.open(settings, ordered);
+            if (result.restoredCount() > 0) {
+                Logger.getLogger(Processor.class.getName()).log(Level.INFO, "Resuming {0} of {1} volumes from {2}",
+                        new Object[]{result.restoredCount(), fileCount, result.file()});
+            }
+            return result;
+        } catch (IOException ex) {
+            Logger.getLogger(Processor.class.getName()).log(Level.INFO, "Opening journal", ex);
+            c.onError("Progress will not be saved: " + ex.getMessage(), ex, false);
+            return null;
         }
     }
 
-    private Runnable processOptFiles(int thread, int total, AtomicInteger remaining, ProgressConsumer c) {
+    private synchronized void interruptPools() {
+        svc.shutdownNow();
+        if (parsePool != null) {
+            parsePool.shutdownNow();
+        }
+    }
+
+    /**
+     * Let the consumer know the run is over, since it will never see output
+     * generation finish.
+     */
+    static void cancelled(ProgressConsumer c) {
+        c.task(0, "Cancelled", Phase.GENERATING).done(true, "Cancelled");
+    }
+
+    /**
+     * Rows can only be written as they are made once every heading is known;
+     * those come from the first line of each .dat file, plus a file column for
+     * each column whose first rows hold something that looks like one of its
+     * volume's document ids. Should that guess turn out wrong, DirectOutput
+     * rewrites the file with the headings the rows really have once they are
+     * all written. JSON has no headings to write.
+     */
+    private DirectOutput directOutput() throws IOException {
+        Set<String> headings = new HashSet<>();
+        if (settings.format() == OutputFormat.CSV) {
+            headings.add("Volume");
+            for (FilePair pair : pairs) {
+                cancel.check();
+                headings.addAll(Arrays.asList(new DatFileParser(pair.datFile()).headings()));
+                for (String column : idColumnCandidates(pair)) {
+                    headings.add(fileKey(column));
+                }
+            }
+        }
+        return new DirectOutput(settings, headings, cancel);
+    }
+
+    /**
+     * Find the columns among the first rows of a .dat file with values that
+     * pass the same test processDatFile() uses to decide whether to look a
+     * value up in the .opt dictionary.
+     */
+    private Set<String> idColumnCandidates(FilePair pair) throws IOException {
+        ItemKey volume = pair.volumeKey();
+        Set<String> result = new HashSet<>();
+        new DatFileParser(pair.datFile())
+                .withLineFilter(settings.filters().lineFilter())
+                .withColumnFilter(settings.filters().columnFilter())
+                .parse(new DatParserConsumer() {
+                    private int rows;
+
+                    @Override
+                    public boolean accept(int item, Map<String, String> entry) {
+                        for (Map.Entry<String, String> e : entry.entrySet()) {
+                            value(e.getKey(), e.getValue());
+                        }
+                        return more();
+                    }
+
+                    @Override
+                    public boolean accept(int item, DatRecord record) {
+                        DatHeadings heads = record.headings();
+                        for (int i = 0; i < heads.size(); i++) {
+                            String v = record.get(i);
+                            if (v != null) {
+                                value(heads.name(i), v);
+                            }
+                        }
+                        return more();
+                    }
+
+                    private void value(String k, String v) {
+                        int digitsStart = ItemKey.digitsStart(v);
+                        if (digitsStart > 0 && volume.prefixMatch(3, v, digitsStart)
+                                && ItemKey.index(v, digitsStart) >= 0) {
+                            result.add(k);
+                        }
+                    }
+
+                    private boolean more() {
+                        return ++rows < DocIdColumns.LEARNING_VALUES && !cancel.isCancelled();
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Each thread loads .opt files while there are any left and the I/O limit
+     * allows, since .dat files wait on them, then processes whichever volumes'
+     * .dat files have the .opt files they depend on loaded, within the CPU
+     * limit. Both are taken largest first from a shared schedule, so idle
+     * threads pick up whatever remains.
+     */
+    private Runnable process(int thread, int total, AtomicInteger completed,
+            AtomicInteger remaining, ProgressConsumer c) {
         return () -> {
-            String msg = "Building .opt dictionary";
+            String msg = "Processing .opt and .dat files";
             ProgressConsumer.ProgressTask task = c.task(thread, msg, Phase.PROCESSING);
             boolean aborted = false;
+            // This thread's own spill file, so writing records needs no lock
+            TempItems.Segment segment = null;
             try {
-                for (FilePair pair = pendingOptFiles.pop(); pair != null; pair = pendingOptFiles.pop()) {
+                for (FilePair pair = takeOptFile(); pair != null; pair = takeOptFile()) {
                     try {
+                        cancel.check();
                         processOptFile(pair.optFile(), c, task);
                     } catch (IOException ex) {
+                        // An interrupted read, not a problem with the file
+                        cancel.check();
                         c.onError(ex.getMessage(), ex, false);
                         Logger.getLogger(Processor.class.getName()).log(Level.SEVERE, null, ex);
+                    } catch (RuntimeException ex) {
+                        // Such as a malformed line; the volume would only be
+                        // partly loaded, so the output can't be trusted
+                        cancel.check();
+                        Logger.getLogger(Processor.class.getName()).log(Level.SEVERE, "Loading " + pair.optFile(), ex);
+                        task.problem(pair.optFile().getFileName() + ": " + ex);
+                        fatal(c, "Loading " + pair.optFile() + ": " + ex.getMessage(), ex);
                     } finally {
-                        int curr = pendingOptFiles.size();
-                        task.progress(total - (curr + 1), total);
+                        ioPermits.release();
+                        optFileDone(pair, c);
+                        task.progress(completed.incrementAndGet(), total * 2);
                     }
                 }
-            } catch (Exception ex) {
+                // If the I/O limit stopped us, the threads holding it take the rest
+                for (FilePair pair = schedule.takeDatFile(); pair != null; pair = schedule.takeDatFile()) {
+                    cpuPermits.acquire();
+                    try {
+                        cancel.check();
+                        if (segment == null) {
+                            segment = tempItems.segment();
+                        }
+                        int order = volumeOrder.get(pair);
+                        TempItems.Segment seg = segment;
+                        Supplier<TempItems.Run> runs = () -> tempItems.run(seg, order);
+                        try {
+                            if (!resume(pair, order, task)) {
+                                processDatFile(pair, order, direct == null ? new RecordBatch(runs)
+                                        : direct.writer(runs), c, task);
+                            }
+                        } finally {
+                            volumeDone(order, c);
+                        }
+                    } catch (IOException ex) {
+                        cancel.check();
+                        c.onError(ex.getMessage(), ex, false);
+                        Logger.getLogger(Processor.class.getName()).log(Level.SEVERE, null, ex);
+                    } finally {
+                        cpuPermits.release();
+                        task.progress(completed.incrementAndGet(), total * 2);
+                    }
+                }
+            } catch (Exception | Error ex) {
                 aborted = true;
-                msg = ex.getMessage() + " - failure";
-                task.problem(ex.getClass().getSimpleName() + " '" + ex.getMessage() + "': "
-                        + Strings.toString(ex));
+                // Other threads may be waiting for .opt files this one would
+                // have loaded, and the output would be missing what it had left
+                ok = false;
+                abortSchedule();
+                if (cancel.isCancelled()) {
+                    msg = "Cancelled";
+                } else {
+                    msg = ex.getMessage() + " - failure";
+                    ex.printStackTrace();
+                    task.problem(ex.getClass().getSimpleName() + " '" + ex.getMessage() + "': "
+                            + Strings.toString(ex));
+                }
             } finally {
+                if (segment != null) {
+                    try {
+                        segment.close();
+                    } catch (IOException ex) {
+                        fatal(c, ex.getMessage() + "", ex);
+                    }
+                }
                 task.done(aborted, msg);
                 if (remaining.decrementAndGet() == 0) {
-                    launchDatFiles(c);
+                    // Cancelling may have interrupted us, which would break
+                    // closing channels and deleting files
+                    Thread.interrupted();
+                    closeDictionary();
+                    closeFiles();
+                    shutdownPools();
+                    boolean written = false;
+                    try {
+                        if (cancel.isCancelled()) {
+                            discardOutput();
+                            cancelled(c);
+                        } else if (!aborted) {
+                            written = launchGeneration(c);
+                        } else if (direct != null) {
+                            discardOutput();
+                        }
+                    } catch (IOException ex) {
+                        fatal(c, ex.getMessage() + "", ex);
+                        Logger.getLogger(Processor.class.getName()).log(Level.SEVERE, null, ex);
+                    } finally {
+                        closeJournal(written);
+                    }
                 }
             }
         };
     }
 
-    void processOptFile(Path optFile, ProgressConsumer c, ProgressConsumer.ProgressTask task) throws IOException {
-        OptFileParser parser = new OptFileParser(optFile);
-        OptConsumer oc = new OptConsumer() {
-            @Override
-            public boolean onEntry(String itemName, String volumeName, Path relativePath, String... parts) {
-                OptFileEntry ofe = new OptFileEntry(itemName, volumeName, relativePath, parts);
-//            synchronized (optDict) {
-                optDict.put(ofe.key(), ofe);
-//            }
-                return ok;
+    /**
+     * Whether parsing should carry on, checked after each record.
+     */
+    private boolean running() {
+        return ok && !cancel.isCancelled();
+    }
+
+    /**
+     * Report a failure which means the output can't be written, unless it is
+     * just the result of cancelling, which interrupts any I/O in progress.
+     */
+    private void fatal(ProgressConsumer c, String message, Throwable ex) {
+        ok = false;
+        abortSchedule();
+        if (!cancel.isCancelled()) {
+            c.onError(message, ex, true);
+        }
+    }
+
+    /**
+     * Hand out no more files, and release threads waiting for .dat files or
+     * for .opt files which will now never be loaded.
+     */
+    private void abortSchedule() {
+        schedule.abort();
+        dictionaryLoaded.countDown();
+    }
+
+    /**
+     * Take a volume's records from the journal, if an earlier run saved it.
+     */
+    private boolean resume(FilePair pair, int volume, ProgressTask task) {
+        Journal.Volume saved = journal == null ? null : journal.restored(volume);
+        if (saved == null) {
+            return false;
+        }
+        tempItems.replace(volume, saved.runs());
+        allHeadings.addAll(saved.headings());
+        allHeadings.addAll(saved.synthetic());
+        syntheticHeadings.addAll(saved.synthetic());
+        task.status("Resumed " + pair.volumeName() + " from " + journal.file().getFileName());
+        return true;
+    }
+
+    /**
+     * Save a volume whose records are all written to the journal; the saved
+     * copies replace its records, so any memory they held is freed.
+     */
+    private void checkpoint(int volume, String[] headings, Set<String> synthetic, ProgressTask task) {
+        if (journal == null || !running()) {
+            return;
+        }
+        try {
+            List<TempItems.Run> saved = journal.save(volume, Arrays.asList(headings), synthetic,
+                    tempItems.runs(volume));
+            if (saved != null) {
+                tempItems.replace(volume, saved);
             }
+        } catch (IOException ex) {
+            // The output can still be written, just not resumed
+            if (!cancel.isCancelled()) {
+                Logger.getLogger(Processor.class.getName()).log(Level.INFO, "Saving to journal", ex);
+                task.problem("Could not save progress to " + journal.file() + ": " + ex.getMessage());
+            }
+        }
+    }
 
-            @Override
-            public boolean onError(String line, int index, String problem) {
-                task.problem(optFile.getFileName() + " line " + line + ": " + problem);
-                return false;
+    /**
+     * Delete the journal once the output is written, or keep it for next time
+     * if it was not.
+     */
+    private void closeJournal(boolean written) {
+        if (journal != null) {
+            try {
+                if (written) {
+                    journal.delete();
+                } else {
+                    journal.close();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(Processor.class.getName()).log(Level.INFO, "Closing journal", ex);
             }
-        };
-        parser.parse(oc);
+        }
     }
 
-    private void launchDatFiles(ProgressConsumer consumer) {
-        int total = pendingDatFiles.size();
-        AtomicInteger running = new AtomicInteger();
-        int th = min(THREADS, total);
-        for (int thread = 0; thread < th; thread++) {
-            running.getAndIncrement();
-            svc.submit(processDatFiles(thread, total, running, consumer));
+    private void discardOutput() throws IOException {
+        try {
+            if (direct != null) {
+                direct.abort();
+            }
+        } finally {
+            tempItems.delete();
         }
     }
 
-    private Runnable processDatFiles(int thread, int total, AtomicInteger remaining, ProgressConsumer c) {
-        return () -> {
-            ObjectMapper map = mapper.copy();
-            String msg = "Processing .dat files";
-            ProgressConsumer.ProgressTask task = c.task(thread, msg, Phase.PROCESSING);
-            boolean aborted = false;
+    private void volumeDone(int volume, ProgressConsumer c) {
+        try {
+            tempItems.volumeDone(volume, direct);
+        } catch (IOException ex) {
+            fatal(c, "Writing " + settings.output() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private FilePair takeOptFile() {
+        if (!ioPermits.tryAcquire()) {
+            return null;
+        }
+        FilePair result = schedule.takeOptFile();
+        if (result == null) {
+            ioPermits.release();
+        }
+        return result;
+    }
+
+    private synchronized ForkJoinPool parsePool() {
+        if (parsePool == null) {
+            parsePool = new ForkJoinPool(settings.cpuThreads());
+        }
+        return parsePool;
+    }
+
+    private synchronized void shutdownPools() {
+        // The calling thread belongs to svc, and carries on to generate output
+        svc.shutdown();
+        if (parsePool != null) {
+            parsePool.shutdown();
+        }
+    }
+
+    private void optFileDone(FilePair pair, ProgressConsumer c) {
+        schedule.optLoaded(pair);
+        if (optFilesRemaining.decrementAndGet() == 0) {
             try {
-                for (FilePair pair = pendingDatFiles.pop(); pair != null; pair = pendingDatFiles.pop()) {
-                    try {
-                        processDatFile(pair, map, c, task);
-                    } catch (IOException ex) {
-                        c.onError(ex.getMessage(), ex, false);
-                        Logger.getLogger(Processor.class.getName()).log(Level.SEVERE, null, ex);
-                    } finally {
-                        int curr = pendingOptFiles.size();
-                        task.progress(total - (curr + 1), total);
-                    }
-                }
-            } catch (Exception | Error ex) {
-                aborted = true;
-                msg = ex.getMessage() + " - failure";
-                ex.printStackTrace();
-                task.problem(ex.getClass().getSimpleName() + " '" + ex.getMessage() + "': "
-                        + Strings.toString(ex));
+                optDict.loaded();
+            } catch (IOException ex) {
+                fatal(c, "Mapping .opt dictionary: " + ex.getMessage(), ex);
             } finally {
-                task.done(aborted, msg);
-                if (remaining.decrementAndGet() == 0) {
+                dictionaryLoaded.countDown();
+            }
+        }
+    }
+
+    private void awaitDictionary() throws IOException {
+        try {
+            dictionaryLoaded.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for .opt files");
+        }
+    }
+
+    void processOptFile(Path optFile, ProgressConsumer c, ProgressConsumer.ProgressTask task) throws IOException {
+        OptCache cache = settings.cacheOptFiles() ? new OptCache(settings.optCacheDir()) : null;
+        if (cache != null) {
+            int count = cache.load(optFile, optDict);
+            if (count >= 0) {
+                task.status("Loaded " + count + " cached entries for " + optFile.getFileName());
+                return;
+            }
+        }
+        OptFileParser parser = new OptFileParser(optFile);
+        try ( OptCache.Writer writer = cache == null ? null : cache.writer(optFile)) {
+            Bool clean = Bool.create(true);
+            OptConsumer oc = new OptConsumer() {
+                @Override
+                public boolean onEntry(String itemName, String volumeName, Path relativePath, String... parts) {
+                    return onEntry(itemName, volumeName, relativePath.toString(), parts);
+                }
+
+                @Override
+                public boolean onEntry(String itemName, String volumeName, String relativePath, String... parts) {
                     try {
-                        if (!aborted) {
-                            launchGeneration(c);
+                        ItemKey vol = ItemKey.from(volumeName);
+                        ItemKey item = ItemKey.from(itemName);
+                        byte[] path = relativePath.getBytes(UTF_8);
+                        optDict.put(vol, item, path);
+                        if (writer != null) {
+                            writer.add(vol, item, path);
                         }
                     } catch (IOException ex) {
-                        ok = false;
-                        c.onError(ex.getMessage() + "", ex, true);
-                        Logger.getLogger(Processor.class.getName()).log(Level.SEVERE, null, ex);
+                        fatal(c, "Writing .opt dictionary: " + ex.getMessage(), ex);
                     }
+                    return running();
+                }
+
+                @Override
+                public boolean onError(String line, int index, String problem) {
+                    clean.set(false);
+                    task.problem(optFile.getFileName() + " line " + line + ": " + problem);
+                    return false;
                 }
+            };
+            parser.parse(oc);
+            // Only cache files which were read completely
+            if (writer != null && ok && clean.getAsBoolean()) {
+                writer.commit();
             }
-        };
+        }
+    }
+
+    private void closeDictionary() {
+        try {
+            optDict.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Processor.class.getName()).log(Level.INFO, "Closing .opt dictionary", ex);
+        }
+    }
+
+    private void closeFiles() {
+        try {
+            files.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Processor.class.getName()).log(Level.INFO, "Closing input files", ex);
+        }
     }
 
-    void processDatFile(FilePair pair, ObjectMapper mapper, ProgressConsumer c,
+    void processDatFile(FilePair pair, int order, RecordWriter batch, ProgressConsumer c,
             ProgressConsumer.ProgressTask task) throws IOException {
         ItemKey volume = pair.volumeKey();
         Path datFile = pair.datFile();
-        DatFileParser parser = new DatFileParser(datFile).withFilter(settings.filters());
-        List<Map<String, String>> all = new ArrayList<>();
-        String[] headings = parser.parse(new DatParserConsumer() {
+        DatFileParser parser = new DatFileParser(datFile)
+                .withLineFilter(settings.filters().lineFilter())
+                .withColumnFilter(settings.filters().columnFilter());
+        if (Files.size(datFile) > PARALLEL_PARSE_THRESHOLD) {
+            // Records still arrive in order, on this thread
+            parser.withParallelism(parsePool(), true);
+        }
+        Set<String> synthesized = new HashSet<>();
+        Map<String, String> fileKeys = new HashMap<>();
+        DocIdColumns idColumns = new DocIdColumns();
+        // Records with references the dictionary can't resolve yet, because
+        // other volumes' .opt files are still loading
+        Map<Integer, Map<String, String>> deferred = new LinkedHashMap<>();
+        final class Records implements DatParserConsumer {
+
+            private final OptDictionary.Lookup lookup = optDict.lookup();
+            private int volumePrefix = optDict.prefixId(volume.prefix());
+            // Once one record has to wait, every later one does too, so
+            // records are processed in file order and which ones are probed
+            // for document ids never depends on when the .opt files finish
+            private boolean deferring;
+
             @Override
             public boolean onError(String line, int index, String problem) {
                 Exception e = new Exception(datFile + ":" + line + " " + problem);
@@ -205,122 +655,281 @@ public class Processor {
 
             @Override
             public boolean accept(int item, Map<String, String> entry) {
-                Map<String, String> toAdd = new HashMap<>();
-                toAdd.put("Volume", pair.volumeName());
-                entry.forEach((k, v) -> {
-                    // MD5Hash is a big source of false positives, and we don't need the NPEs
-                    if (!"MD5Hash".equals(k) && !"Author".equals(k)) {
-                        Optional<EntryKey> ek = volume.possibleKey(v);
-                        if (ek.isPresent()) {
-                            EntryKey target = ek.get();
-                            OptFileEntry opt = optDict.get(target);
-                            boolean found = opt != null;
-                            if (opt != null) {
-                                toAdd.put(k + SYNTH_FILE_KEY_SUFFIX, opt.path());
-                            } else {
-                                // Not sure what the off-by-one thing going on here is, but
-                                // we have references to files that do exist, but in the .opt
-                                // file, they are in some other volume, not the one the opt file
-                                // is part of.  So scan a bit before and after.
-                                Optional<EntryKey> altKey = target.withNextVolume();
-                                if (altKey.isPresent()) {
-                                    opt = optDict.get(altKey.get());
-                                    if (opt != null) {
-                                        found = true;
-                                        toAdd.put(k + SYNTH_FILE_KEY_SUFFIX, opt.path());
-                                    }
-                                } else {
-                                    altKey = target.withPrevVolume();
-                                    if (altKey.isPresent()) {
-                                        opt = optDict.get(altKey.get());
-                                        if (opt != null) {
-                                            found = true;
-                                            toAdd.put(k + SYNTH_FILE_KEY_SUFFIX, opt.path());
-                                        }
-                                    }
-                                }
-                                if (!found) {
-                                    task.problem(datFile.getFileName() + " item " + item
-                                            + " refers to " + v + " for column '" + k
-                                            + "' which looks like it could "
-                                            + " be an document ID, but which is not present in "
-                                            + pair.optFile().getFileName());
-                                    System.out.println("No opt for " + target);
-                                }
-                            }
+                if (deferring || (!optDict.isLoaded() && !resolvable(entry.values()))) {
+                    return defer(item, new LinkedHashMap<>(entry));
+                }
+                return process(item, entry);
+            }
+
+            private boolean process(int item, Map<String, String> entry) {
+                try {
+                    batch.begin(item);
+                    idColumns.row();
+                    for (Map.Entry<String, String> e : entry.entrySet()) {
+                        value(item, e.getKey(), e.getValue());
+                    }
+                    return finish();
+                } catch (IOException ex) {
+                    return fail(ex);
+                }
+            }
+
+            @Override
+            public boolean accept(int item, DatRecord record) {
+                if (deferring || (!optDict.isLoaded() && !resolvable(record))) {
+                    Map<String, String> values = new LinkedHashMap<>();
+                    DatHeadings heads = record.headings();
+                    for (int i = 0; i < heads.size(); i++) {
+                        String v = record.get(i);
+                        if (v != null) {
+                            values.put(heads.name(i), v);
                         }
                     }
-                });
-                if (!toAdd.isEmpty()) {
-                    Set<String> synthesized = toAdd.keySet();
-                    allHeadings.addAll(synthesized);
-                    syntheticHeadings.addAll(synthesized);
+                    return defer(item, values);
                 }
-                entry.putAll(toAdd);
-                all.add(entry);
-                if (all.size() % 200 == 0) {
-                    try {
-                        writeToTempFile(all);
-                    } catch (IOException ex) {
-                        ok = false;
-                        c.onError(ex.getMessage() + "", ex, true);
+                try {
+                    batch.begin(item);
+                    idColumns.row();
+                    DatHeadings heads = record.headings();
+                    for (int i = 0; i < heads.size(); i++) {
+                        String v = record.get(i);
+                        if (v != null) {
+                            value(item, heads.name(i), v);
+                        }
                     }
+                    return finish();
+                } catch (IOException ex) {
+                    return fail(ex);
+                }
+            }
+
+            private boolean defer(int item, Map<String, String> values) {
+                deferring = true;
+                deferred.put(item, values);
+                if (deferred.size() < MAX_DEFERRED_RECORDS) {
+                    return running();
+                }
+                // Don't let a volume's worth of records pile up on the heap
+                try {
+                    return replay();
+                } catch (IOException ex) {
+                    return fail(ex);
                 }
-                return ok;
             }
-        });
-        this.allHeadings.addAll(Arrays.asList(headings));
-        if (ok && !all.isEmpty()) {
-            writeToTempFile(all);
-        }
-    }
 
-    private TempItems tempFile;
+            /**
+             * Wait for the dictionary, then process the deferred records in
+             * order; no more are deferred after that.
+             */
+            boolean replay() throws IOException {
+                task.status("Waiting for .opt files to finish " + datFile.getFileName());
+                awaitDictionary();
+                deferring = false;
+                for (Iterator<Map.Entry<Integer, Map<String, String>>> it = deferred.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<Integer, Map<String, String>> e = it.next();
+                    it.remove();
+                    if (!running() || !process(e.getKey(), e.getValue())) {
+                        return false;
+                    }
+                }
+                return running();
+            }
 
-    synchronized TempItems tempFile() throws IOException {
-        if (tempFile == null) {
-            tempFile = new TempItems(FileUtils.newTempFile("ccd-temp"), mapper);
-        }
-        return tempFile;
-    }
+            private boolean resolvable(DatRecord record) {
+                for (int i = 0; i < record.headings().size(); i++) {
+                    String v = record.get(i);
+                    if (v != null && !resolvable(v)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
 
-    private synchronized void writeToTempFile(List<Map<String, String>> items) throws IOException {
-        try {
-            TempItems ti = tempFile();
-            for (Map<String, String> m : items) {
-                ti.write(m);
+            private boolean resolvable(Collection<String> values) {
+                for (String v : values) {
+                    if (!resolvable(v)) {
+                        return false;
+                    }
+                }
+                return true;
             }
-        } finally {
-            items.clear();
+
+            /**
+             * While other .opt files are still loading, a reference is only
+             * certain to resolve the same way as it will once they are all in if
+             * it is found in this volume, which is always tried first.
+             */
+            private boolean resolvable(String v) {
+                int digitsStart = ItemKey.digitsStart(v);
+                if (digitsStart > 0 && volume.prefixMatch(3, v, digitsStart)) {
+                    int index = ItemKey.index(v, digitsStart);
+                    return index < 0 || lookup.find(volumePrefix(), volume.index(),
+                            optDict.prefixId(v, digitsStart), index);
+                }
+                return true;
+            }
+
+            private int volumePrefix() {
+                if (volumePrefix == 0) {
+                    // Not known until some .opt file lists it
+                    volumePrefix = optDict.prefixId(volume.prefix());
+                }
+                return volumePrefix;
+            }
+
+            private void value(int item, String k, String v) throws IOException {
+                batch.value(k, v);
+                DocIdColumns.Column column = idColumns.column(k);
+                if (!idColumns.probe(column)) {
+                    return;
+                }
+                int digitsStart = ItemKey.digitsStart(v);
+                if (digitsStart > 0 && volume.prefixMatch(3, v, digitsStart)) {
+                    int index = ItemKey.index(v, digitsStart);
+                    if (index < 0) {
+                        // Something like a hash ending in more digits than will fit in an integer
+                        return;
+                    }
+                    int itemPrefix = optDict.prefixId(v, digitsStart);
+                    // .dat files also refer to items which the .opt files list under
+                    // some other volume than the one the .dat file is part of; most
+                    // misses are not in any volume, and need no probing at all
+                    boolean found = optDict.mayContain(itemPrefix, index)
+                            && lookup.findInAnyVolume(volumePrefix(), volume.index(), itemPrefix, index);
+                    if (found) {
+                        column.resolved();
+                        String key = fileKeys.computeIfAbsent(k, Processor::fileKey);
+                        batch.synthetic(key, lookup.bytes(), 0, lookup.length());
+                        headings(key);
+                    } else {
+                        column.unresolved(() -> {
+                            task.problem(datFile.getFileName() + " item " + item
+                                    + " refers to " + v + " for column '" + k
+                                    + "' which looks like it could "
+                                    + " be an document ID, but which is not present in "
+                                    + pair.optFile().getFileName());
+                            System.out.println("No opt for " + volume + ":" + v);
+                        });
+                    }
+                }
+            }
+
+            private void synthetic(String k, String v) {
+                batch.synthetic(k, v);
+                headings(k);
+            }
+
+            private void headings(String k) {
+                if (synthesized.add(k)) {
+                    allHeadings.add(k);
+                    syntheticHeadings.add(k);
+                }
+            }
+
+            private boolean finish() throws IOException {
+                synthetic("Volume", pair.volumeName());
+                batch.end();
+                if (batch.isFull()) {
+                    batch.flush();
+                }
+                return running();
+            }
+
+            private boolean fail(IOException ex) {
+                fatal(c, ex.getMessage() + "", ex);
+                return false;
+            }
+        }
+        Records consumer = new Records();
+        String[] headings = parser.parse(consumer);
+        cancel.check();
+        if (!deferred.isEmpty() && ok) {
+            consumer.replay();
         }
+        this.allHeadings.addAll(Arrays.asList(headings));
+        Logger.getLogger(Processor.class.getName()).log(Level.INFO, "{0}: {1}",
+                new Object[]{datFile.getFileName(), idColumns.summary()});
+        if (ok && !batch.isEmpty()) {
+            batch.flush();
+        }
+        checkpoint(order, headings, synthesized, task);
+    }
+
+    private static String fileKey(String column) {
+        return column + SYNTH_FILE_KEY_SUFFIX;
     }
 
-    void launchGeneration(ProgressConsumer c) throws IOException {
-        TempItems ti;
-        synchronized (this) {
-            ti = tempFile;
+    /**
+     * Write the output.
+     *
+     * @param c The consumer
+     * @return Whether the output was written
+     * @throws IOException If temp files cannot be deleted
+     */
+    boolean launchGeneration(ProgressConsumer c) throws IOException {
+        if (direct != null) {
+            return finishDirectOutput(c);
         }
-        if (!ok || ti == null) {
+        TempItems ti = tempItems;
+        if (!ok || ti.isEmpty()) {
             ok = false;
-            c.onError("Aborted? Not ok or tempfile is null, or no items at all found.",
+            ti.delete();
+            c.onError("Aborted? Not ok or no temp files, or no items at all found.",
                     new Exception(), true);
-            return;
+            return false;
         }
         ProgressTask task = c.task(0, "Generate " + settings.format(), Phase.GENERATING);
         boolean aborted = false;
         String msg = "Finished generation";
         try {
-            new XLSGenerator(mapper, ti, settings).generate(allHeadings, syntheticHeadings, task);
+            new XLSGenerator(ti, settings, cancel).generate(allHeadings, syntheticHeadings, task);
         } catch (Exception | Error ex) {
-            Logger.getLogger(Processor.class.getName()).log(Level.INFO, "Failed generation", ex);
-            task.problem(ex.getClass().getSimpleName() + " '" + ex.getMessage() + "': "
-                    + Strings.toString(ex));
-            msg = ex.getMessage() + "";
+            msg = generationFailed(ex, task);
             aborted = true;
         } finally {
             task.done(aborted, msg);
             ti.delete();
         }
+        return !aborted;
+    }
+
+    private boolean finishDirectOutput(ProgressConsumer c) throws IOException {
+        if (!ok) {
+            direct.abort();
+            tempItems.delete();
+            c.onError("Aborted - output not written.", new Exception(), true);
+            return false;
+        }
+        ProgressTask task = c.task(0, "Generate " + settings.format(), Phase.GENERATING);
+        boolean aborted = false;
+        String msg = "Finished generation";
+        try {
+            // Anything a failed worker left unfinished
+            tempItems.drainAll(direct);
+            direct.headings(allHeadings);
+            direct.close();
+            task.status("Saved " + direct.rows() + " rows to " + direct.file());
+        } catch (IOException | CancellationException ex) {
+            msg = generationFailed(ex, task);
+            aborted = true;
+        } finally {
+            task.done(aborted, msg);
+            if (aborted) {
+                direct.abort();
+            }
+            tempItems.delete();
+        }
+        return !aborted;
+    }
+
+    private String generationFailed(Throwable ex, ProgressTask task) {
+        if (cancel.isCancelled()) {
+            return "Cancelled";
+        }
+        Logger.getLogger(Processor.class.getName()).log(Level.INFO, "Failed generation", ex);
+        task.problem(ex.getClass().getSimpleName() + " '" + ex.getMessage() + "': "
+                + Strings.toString(ex));
+        return ex.getMessage() + "";
     }
 
     static class TF implements ThreadFactory {
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.to.xls.tool;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Encodes records in the binary format described in TempItems directly from
+ * their column values, into an in-memory batch which is periodically handed to
+ * the current run in a single write; a record numbered lower than the one
+ * before it, such as one whose lookups had to wait, starts a new run so each
+ * stays in order. Synthetic values
+ * are written after the record's own values, so they win if a column has the
+ * same name, as they did when records were merged into a map.
+ *
+ * @author Tim Boudreau
+ */
+final class RecordBatch implements RecordWriter {
+
+    private static final int FLUSH_BYTES = 512 * 1024;
+    private final Supplier<TempItems.Run> runs;
+    private TempItems.Run run;
+    private int last = -1;
+    private byte[] bytes = new byte[FLUSH_BYTES + 64 * 1024];
+    private int size;
+    private int recordStart;
+    private String[] synthKeys = new String[8];
+    private String[] synthValues = new String[8];
+    // UTF-8 synthetic values are copied here; a null value means use these
+    private byte[] synthBytes = new byte[1024];
+    private int synthBytesUsed;
+    private int[] synthOffsets = new int[8];
+    private int[] synthLengths = new int[8];
+    private int synthCount;
+    private int records;
+
+    RecordBatch(Supplier<TempItems.Run> runs) {
+        this.runs = runs;
+    }
+
+    @Override
+    public void begin(int record) throws IOException {
+        if (run == null || record < last) {
+            flush();
+            run = runs.get();
+        }
+        last = record;
+        synthCount = 0;
+        synthBytesUsed = 0;
+        // The record's length goes here once it is known
+        recordStart = size;
+        ensure(9);
+        size += 4;
+        varint(record);
+    }
+
+    @Override
+    public void value(String key, String value) {
+        column(key);
+        int length = utf8Length(value);
+        ensure(5 + length);
+        varint(length);
+        size = utf8(value, bytes, size);
+    }
+
+    @Override
+    public void synthetic(String key, String value) {
+        add(key, value, 0, 0);
+    }
+
+    /**
+     * The bytes go into the output without ever becoming a string.
+     */
+    @Override
+    public void synthetic(String key, byte[] utf8, int offset, int length) {
+        if (synthBytesUsed + length > synthBytes.length) {
+            synthBytes = Arrays.copyOf(synthBytes, Math.max(synthBytes.length * 2, synthBytesUsed + length));
+        }
+        System.arraycopy(utf8, offset, synthBytes, synthBytesUsed, length);
+        add(key, null, synthBytesUsed, length);
+        synthBytesUsed += length;
+    }
+
+    private void add(String key, String value, int offset, int length) {
+        if (synthCount == synthKeys.length) {
+            synthKeys = Arrays.copyOf(synthKeys, synthCount * 2);
+            synthValues = Arrays.copyOf(synthValues, synthCount * 2);
+            synthOffsets = Arrays.copyOf(synthOffsets, synthCount * 2);
+            synthLengths = Arrays.copyOf(synthLengths, synthCount * 2);
+        }
+        synthKeys[synthCount] = key;
+        synthValues[synthCount] = value;
+        synthOffsets[synthCount] = offset;
+        synthLengths[synthCount++] = length;
+    }
+
+    @Override
+    public void end() {
+        for (int i = 0; i < synthCount; i++) {
+            if (synthValues[i] == null) {
+                column(synthKeys[i]);
+                ensure(5 + synthLengths[i]);
+                varint(synthLengths[i]);
+                System.arraycopy(synthBytes, synthOffsets[i], bytes, size, synthLengths[i]);
+                size += synthLengths[i];
+            } else {
+                value(synthKeys[i], synthValues[i]);
+            }
+        }
+        length(bytes, recordStart, size - recordStart - 4);
+        records++;
+    }
+
+    @Override
+    public boolean isFull() {
+        return size >= FLUSH_BYTES;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return records == 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (records == 0) {
+            return;
+        }
+        try {
+            run.write(bytes, size, records);
+        } finally {
+            size = 0;
+            records = 0;
+        }
+    }
+
+    /**
+     * Write a column's id, and its name if this is the first time the run has
+     * seen it.
+     */
+    private void column(String name) {
+        int id = run.columnId(name);
+        if (id < 0) {
+            id = run.defineColumn(name);
+            ensure(10);
+            varint(id);
+            int length = utf8Length(name);
+            ensure(5 + length);
+            varint(length);
+            size = utf8(name, bytes, size);
+        } else {
+            ensure(5);
+            varint(id);
+        }
+    }
+
+    private void varint(int value) {
+        size = varint(bytes, size, value);
+    }
+
+    static int varint(byte[] into, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            into[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        into[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Fill in the 4-byte length reserved at the start of an entry.
+     */
+    static void length(byte[] into, int at, int length) {
+        into[at] = (byte) (length >>> 24);
+        into[at + 1] = (byte) (length >>> 16);
+        into[at + 2] = (byte) (length >>> 8);
+        into[at + 3] = (byte) length;
+    }
+
+    private void ensure(int length) {
+        if (size + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+        }
+    }
+
+    static int utf8Length(String s) {
+        int len = s.length();
+        int result = len;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    result++;
+                } else if (Character.isHighSurrogate(c) && i + 1 < len
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // Four bytes for the pair
+                    result += 2;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired, written as '?' like String.getBytes()
+                } else {
+                    result += 2;
+                }
+            }
+        }
+        return result;
+    }
+
+    static int utf8(String s, byte[] into, int pos) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                into[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                into[pos++] = (byte) (0xC0 | (c >> 6));
+                into[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                into[pos++] = (byte) (0xF0 | (cp >> 18));
+                into[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                into[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                into[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                into[pos++] = '?';
+            } else {
+                into[pos++] = (byte) (0xE0 | (c >> 12));
+                into[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                into[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+}
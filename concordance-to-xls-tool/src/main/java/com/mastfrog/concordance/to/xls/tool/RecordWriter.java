@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.to.xls.tool;
+
+import java.io.IOException;
+
+/**
+ * Receives the records built from a .dat file one value at a time, and hands
+ * them on in batches. Synthetic values win over a record's own values for a
+ * column of the same name, whatever order they are added in.
+ *
+ * @author Tim Boudreau
+ */
+interface RecordWriter {
+
+    /**
+     * Start a record.
+     *
+     * @param record Its record number in the .dat file, which determines where
+     * it goes in the output
+     * @throws IOException If starting a new run flushes the batch and that
+     * fails
+     */
+    void begin(int record) throws IOException;
+
+    void value(String key, String value);
+
+    void synthetic(String key, String value);
+
+    /**
+     * Add a synthetic value which is already UTF-8 encoded, such as a path from
+     * the opt dictionary; the bytes are copied, so the caller can reuse its
+     * array.
+     */
+    void synthetic(String key, byte[] utf8, int offset, int length);
+
+    void end() throws IOException;
+
+    boolean isFull();
+
+    boolean isEmpty();
+
+    void flush() throws IOException;
+}
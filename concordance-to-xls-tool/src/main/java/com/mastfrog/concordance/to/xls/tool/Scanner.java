@@ -20,10 +20,15 @@ package com.mastfrog.concordance.to.xls.tool;
 
 import com.mastfrog.concordance.to.xls.tool.ProgressConsumer.ProgressTask;
 import com.mastfrog.function.state.Int;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Level;
@@ -31,15 +36,21 @@ import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 /**
+ * Finds .opt/.dat file pairs. Zip archives found along the way are opened as
+ * filesystems which the pairs' paths belong to, so they stay open until the
+ * scanner is closed, once nothing will read those paths again.
  *
  * @author Tim Boudreau
  */
-public class Scanner {
+public class Scanner implements Closeable {
 
+    private final Map<Path, FileSystem> archives = new ConcurrentHashMap<>();
     private final ConversionSettings settings;
+    private final Cancellation cancel;
 
-    public Scanner(ConversionSettings settings) {
+    public Scanner(ConversionSettings settings, Cancellation cancel) {
         this.settings = settings;
+        this.cancel = cancel;
     }
 
     public void scan(Set<? super FilePair> pairs, ProgressConsumer c) throws IOException {
@@ -48,9 +59,18 @@ public class Scanner {
         try {
             if (settings.root() == null) {
                 c.onError("No folder to scan provided", new IOException(), true);
+            } else if (isArchive(settings.root())) {
+                checkArchive(settings.root(), pairs::add);
+                if (pairs.isEmpty()) {
+                    c.onError("No opt/dat file pairs found in " + settings.root().getFileName(),
+                            new IOException(), true);
+                } else {
+                    task.status("Found " + pairs.size() + " files");
+                }
             } else if (settings.scan()) {
                 try ( Stream<Path> str = Files.walk(settings.root(), 200).unordered().parallel().filter(Files::isDirectory)) {
                     str.forEach(dir -> {
+                        cancel.check();
                         try {
                             Int ct = Int.create();
                             checkOneDir(dir, pth -> {
@@ -77,11 +97,80 @@ public class Scanner {
                 }
             }
         } finally {
-            task.done(false, "Finished scan with " + pairs.size() + " .opt/.dat file pairs");
+            if (cancel.isCancelled()) {
+                task.done(true, "Cancelled");
+            } else {
+                task.done(false, "Finished scan with " + pairs.size() + " .opt/.dat file pairs");
+            }
+        }
+    }
+
+    static boolean isArchive(Path path) {
+        // Only archives on the real filesystem - no zips inside zips
+        if (path.getFileSystem() != FileSystems.getDefault() || path.getFileName() == null) {
+            return false;
+        }
+        String nm = path.getFileName().toString();
+        return (nm.endsWith(".zip") || nm.endsWith(".ZIP")) && Files.isRegularFile(path);
+    }
+
+    /**
+     * Opens (once per scan) a zip filesystem over an archive, so entries can
+     * be paired and then read as paths, with each entry decompressed as it is
+     * parsed rather than unpacked to disk. Opening it afresh for each run means
+     * an archive replaced since the last one is read as it is now.
+     */
+    private FileSystem archive(Path zip) throws IOException {
+        Path key = zip.toAbsolutePath().normalize();
+        FileSystem result = archives.get(key);
+        if (result == null) {
+            synchronized (archives) {
+                result = archives.get(key);
+                if (result == null) {
+                    result = FileSystems.newFileSystem(key, (ClassLoader) null);
+                    archives.put(key, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Close any archives opened while scanning, releasing their files.
+     */
+    @Override
+    public void close() {
+        synchronized (archives) {
+            for (FileSystem fs : archives.values()) {
+                try {
+                    fs.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(Scanner.class.getName()).log(Level.INFO, "Closing " + fs, ex);
+                }
+            }
+            archives.clear();
+        }
+    }
+
+    private void checkArchive(Path zip, Consumer<FilePair> c) throws IOException {
+        // The central directory is already in memory, so walking it is cheap,
+        // and an archive is searched completely regardless of the scan setting
+        for (Path root : archive(zip).getRootDirectories()) {
+            try ( Stream<Path> str = Files.walk(root, 200).filter(Files::isDirectory)) {
+                for (Path dir : (Iterable<Path>) str::iterator) {
+                    checkOneDir(dir, c);
+                }
+            }
         }
     }
 
     private void checkOneDir(Path dir, Consumer<FilePair> c) throws IOException {
+        cancel.check();
+        try ( Stream<Path> archives = Files.list(dir).filter(Scanner::isArchive)) {
+            for (Path zip : (Iterable<Path>) archives::iterator) {
+                checkArchive(zip, c);
+            }
+        }
         try ( Stream<Path> files = Files.list(dir).parallel().filter(p -> {
             return Files.exists(p) && Files.isReadable(p) && (p.getFileName().toString().endsWith(".dat")
                     || p.getFileName().toString().endsWith(".DAT"));
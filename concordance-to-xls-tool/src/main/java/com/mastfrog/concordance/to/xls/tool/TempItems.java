@@ -18,78 +18,616 @@
  */
 package com.mastfrog.concordance.to.xls.tool;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mastfrog.util.file.FileUtils;
-import com.mastfrog.util.preconditions.Exceptions;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
+ * Records waiting to be output, kept so they come out in the same order on
+ * every run no matter which worker produced them when. Each volume's records
+ * are stored as one or more runs, each in record number order; volumes are
+ * output in order, and a volume's runs are merged by record number.
+ * <p>
+ * Each entry is a 4-byte length followed by a varint record number and a
+ * payload. Payloads of records are binary: fields, each a varint column id and
+ * a varint length followed by that many bytes of UTF-8. Column ids are per
+ * run, assigned in order of first use, and the first time an id appears it is
+ * followed by the column's name, in the same form as a value, so there is no
+ * per-row key text.
+ * </p><p>
+ * Each batch of entries a run is handed is deflated into a block. Blocks are
+ * kept in memory while the total across all runs fits in the memory budget;
+ * past that, they are appended to a temp file belonging to the segment, one
+ * per worker thread, the run was created from, so only runs too large for the
+ * budget touch the disk, and then only with compressed bytes. A finished
+ * volume's runs may be replaced by copies saved in a {@link Journal}, which
+ * read their blocks from it.
+ * </p>
  *
  * @author Tim Boudreau
  */
 class TempItems implements AutoCloseable {
 
-    private final Path file;
-    private final FileChannel channel;
-    private final ObjectMapper mapper;
-    volatile boolean open = true;
-    int total;
+    private final List<Segment> segments = new ArrayList<>();
+    // Bytes of compressed blocks which may still be held in memory
+    private final AtomicLong memoryLeft;
+    private final List<List<Run>> volumes;
+    private final boolean[] complete;
+    // The first volume not yet passed to a sink
+    private int next;
+    private boolean draining;
 
-    TempItems(Path file, ObjectMapper mapper) throws IOException {
-        this.file = file;
-        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-        this.mapper = mapper;
+    TempItems(long memoryBudget, int volumes) {
+        memoryLeft = new AtomicLong(memoryBudget);
+        this.volumes = new ArrayList<>(volumes);
+        for (int i = 0; i < volumes; i++) {
+            this.volumes.add(new ArrayList<>(2));
+        }
+        complete = new boolean[volumes];
+    }
+
+    /**
+     * Create a new segment; each must only be used by one thread.
+     *
+     * @return A segment
+     */
+    Segment segment() {
+        Segment result = new Segment(memoryLeft);
+        synchronized (this) {
+            segments.add(result);
+        }
+        return result;
+    }
+
+    /**
+     * Start a new run of records for a volume, which must be written in
+     * record number order by the thread that owns the segment.
+     *
+     * @param segment The calling thread's segment
+     * @param volume The volume's position in the output
+     * @return A run
+     */
+    synchronized Run run(Segment segment, int volume) {
+        Run result = new Run(segment);
+        volumes.get(volume).add(result);
+        return result;
+    }
+
+    /**
+     * Get the runs of a volume whose records are all written.
+     *
+     * @param volume A volume
+     * @return Its runs
+     */
+    synchronized List<Run> runs(int volume) {
+        return new ArrayList<>(volumes.get(volume));
     }
 
-    synchronized void write(Map<String, String> m) throws JsonProcessingException, IOException {
-        byte[] bytes = (mapper.writeValueAsString(m) + "\n").getBytes(StandardCharsets.UTF_8);
-        channel.write(ByteBuffer.wrap(bytes));
-        total++;
+    /**
+     * Replace the runs of a volume whose records are all written with copies,
+     * such as ones saved in a journal, giving up the originals.
+     *
+     * @param volume A volume
+     * @param runs The copies
+     */
+    void replace(int volume, List<Run> runs) {
+        List<Run> old;
+        synchronized (this) {
+            old = volumes.set(volume, new ArrayList<>(runs));
+        }
+        for (Run run : old) {
+            run.discard();
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return segments.isEmpty();
     }
 
     synchronized int total() {
-        return total;
+        int result = 0;
+        for (List<Run> runs : volumes) {
+            for (Run run : runs) {
+                result += run.records;
+            }
+        }
+        return result;
     }
 
-    @Override
-    public synchronized void close() throws IOException {
-        if (open) {
-            open = false;
-            channel.close();
+    /**
+     * Mark a volume's records complete, and if the sink is non-null pass it
+     * every volume whose turn it now is. If another thread is already doing
+     * that, it picks up this one too, so the caller never waits on volumes
+     * ahead of it.
+     *
+     * @param volume A volume
+     * @param sink Where entries' payloads go, or null to leave them until
+     * they are read
+     * @throws IOException If the sink throws
+     */
+    void volumeDone(int volume, Sink sink) throws IOException {
+        synchronized (this) {
+            complete[volume] = true;
+            if (sink == null || draining) {
+                return;
+            }
+            draining = true;
         }
+        drain(sink, false);
     }
 
+    /**
+     * Pass every remaining volume to a sink, complete or not, once no more
+     * records are coming.
+     *
+     * @param sink A sink
+     * @throws IOException If the sink throws
+     */
+    void drainAll(Sink sink) throws IOException {
+        synchronized (this) {
+            draining = true;
+        }
+        drain(sink, true);
+    }
+
+    private void drain(Sink sink, boolean all) throws IOException {
+        boolean done = false;
+        try {
+            for (;;) {
+                List<Run> runs;
+                synchronized (this) {
+                    if (next == complete.length || (!all && !complete[next])) {
+                        draining = false;
+                        done = true;
+                        return;
+                    }
+                    runs = volumes.get(next++);
+                }
+                merge(runs, cursor -> sink.entry(cursor.buf.array(), cursor.buf.position(),
+                        cursor.end - cursor.buf.position()));
+                for (Run run : runs) {
+                    run.discard();
+                }
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    draining = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read every volume's records in order.
+     *
+     * @param c A consumer
+     * @throws IOException If something goes wrong
+     */
     void read(Consumer<Map<String, String>> c) throws IOException {
-        try (final Stream<String> str = Files.lines(file).filter(l -> !l.isEmpty())) {
-            str.forEach(line -> {
-                if (!line.isEmpty()) {
-                    try {
-                        Map<String, String> items = mapper.readValue(line, MAP_REF);
-                        c.accept(items);
-                    } catch (JsonProcessingException ex) {
-                        Exceptions.chuck(ex);
+        List<List<Run>> all;
+        synchronized (this) {
+            all = new ArrayList<>(volumes);
+        }
+        for (List<Run> runs : all) {
+            merge(runs, cursor -> c.accept(cursor.record()));
+        }
+    }
+
+    /**
+     * Pass the entries of a volume's runs to a consumer in record number
+     * order.
+     */
+    private static void merge(List<Run> runs, EntryConsumer c) throws IOException {
+        List<Cursor> cursors = new ArrayList<>(runs.size());
+        try {
+            for (Run run : runs) {
+                Cursor cursor = new Cursor(run);
+                cursors.add(cursor);
+                cursor.next();
+            }
+            for (;;) {
+                // Rarely more than a couple of runs, so no need for a heap
+                Cursor min = null;
+                for (Cursor cursor : cursors) {
+                    if (cursor.hasEntry() && (min == null || cursor.number < min.number)) {
+                        min = cursor;
                     }
                 }
-            });
+                if (min == null) {
+                    return;
+                }
+                c.accept(min);
+                min.next();
+            }
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
         }
     }
-    static final TypeReference<TreeMap<String, String>> MAP_REF = new TypeReference<TreeMap<String, String>>() {
-    };
 
-    public void delete() throws IOException {
+    @Override
+    public synchronized void close() throws IOException {
+        IOException thrown = null;
+        for (Segment seg : segments) {
+            try {
+                seg.close();
+            } catch (IOException ex) {
+                if (thrown == null) {
+                    thrown = ex;
+                } else {
+                    thrown.addSuppressed(ex);
+                }
+            }
+        }
+        if (thrown != null) {
+            throw thrown;
+        }
+    }
+
+    public synchronized void delete() throws IOException {
         close();
-        FileUtils.deleteIfExists(file);
+        for (List<Run> runs : volumes) {
+            for (Run run : runs) {
+                run.discard();
+            }
+        }
+        for (Segment seg : segments) {
+            if (seg.file != null) {
+                FileUtils.deleteIfExists(seg.file);
+            }
+        }
+    }
+
+    /**
+     * Receives the compressed blocks of a run.
+     */
+    interface BlockConsumer {
+
+        void block(byte[] compressed, int compressedLength, int length) throws IOException;
+    }
+
+    /**
+     * Receives the payloads of entries.
+     */
+    interface Sink {
+
+        void entry(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    private interface EntryConsumer {
+
+        void accept(Cursor cursor) throws IOException;
+    }
+
+    /**
+     * A batch of entries, deflated; either held in memory or stored in the
+     * segment's file at an offset.
+     */
+    private static final class Block {
+
+        private final byte[] data;
+        private final long offset;
+        private final int compressedLength;
+        private final int length;
+
+        Block(byte[] data, long offset, int compressedLength, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.length = length;
+        }
+
+        /**
+         * Read the compressed bytes of a block stored in a file.
+         */
+        byte[] read(FileChannel channel, byte[] into) throws IOException {
+            ByteBuffer target = ByteBuffer.wrap(into, 0, compressedLength);
+            while (target.hasRemaining()) {
+                if (channel.read(target, offset + target.position()) < 0) {
+                    throw new IOException("Spill file truncated");
+                }
+            }
+            return into;
+        }
+    }
+
+    /**
+     * Reads the entries of one run, block by block.
+     */
+    private static final class Cursor {
+
+        private final Run run;
+        private final Inflater inflater = new Inflater();
+        private final List<String> columns = new ArrayList<>();
+        private FileChannel channel;
+        private byte[] compressed;
+        private byte[] block;
+        private byte[] scratch = new byte[1024];
+        private ByteBuffer buf;
+        private int blockIndex;
+        private int number;
+        // The end of the current entry's payload, or -1 if there is none
+        private int end = -1;
+
+        Cursor(Run run) {
+            this.run = run;
+        }
+
+        boolean hasEntry() {
+            return end >= 0;
+        }
+
+        void next() throws IOException {
+            if (end >= 0) {
+                buf.position(end);
+            }
+            while (buf == null || !buf.hasRemaining()) {
+                if (blockIndex == run.blocks.size()) {
+                    end = -1;
+                    return;
+                }
+                buf = inflate(run.blocks.get(blockIndex++));
+            }
+            int length = buf.getInt();
+            end = buf.position() + length;
+            number = varint();
+        }
+
+        /**
+         * Decode the current entry as a record.
+         */
+        Map<String, String> record() {
+            Map<String, String> record = new TreeMap<>();
+            while (buf.position() < end) {
+                int id = varint();
+                if (id == columns.size()) {
+                    columns.add(string().intern());
+                }
+                record.put(columns.get(id), string());
+            }
+            return record;
+        }
+
+        private ByteBuffer inflate(Block b) throws IOException {
+            byte[] in = b.data;
+            if (in == null) {
+                if (compressed == null || compressed.length < b.compressedLength) {
+                    compressed = new byte[b.compressedLength];
+                }
+                if (channel == null) {
+                    channel = FileChannel.open(run.segment.file, StandardOpenOption.READ);
+                }
+                in = b.read(channel, compressed);
+            }
+            if (block == null || block.length < b.length) {
+                block = new byte[b.length];
+            }
+            inflater.reset();
+            inflater.setInput(in, 0, b.compressedLength);
+            try {
+                for (int n = 0; n < b.length;) {
+                    int count = inflater.inflate(block, n, b.length - n);
+                    if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Spill block truncated");
+                    }
+                    n += count;
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException(ex);
+            }
+            return ByteBuffer.wrap(block, 0, b.length);
+        }
+
+        private int varint() {
+            int result = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = buf.get();
+                result |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+        }
+
+        private String string() {
+            int length = varint();
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buf.get(scratch, 0, length);
+            return new String(scratch, 0, length, UTF_8);
+        }
+
+        void close() throws IOException {
+            inflater.end();
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Entries in record number order, written by one thread.
+     */
+    static final class Run {
+
+        private final Segment segment;
+        private final List<Block> blocks = new ArrayList<>();
+        private final Map<String, Integer> columns = new HashMap<>();
+        private int records;
+
+        Run(Segment segment) {
+            this.segment = segment;
+        }
+
+        Run(Segment segment, int records) {
+            this.segment = segment;
+            this.records = records;
+        }
+
+        void write(byte[] bytes, int length, int records) throws IOException {
+            blocks.add(segment.store(bytes, length));
+            this.records += records;
+        }
+
+        int records() {
+            return records;
+        }
+
+        int blockCount() {
+            return blocks.size();
+        }
+
+        /**
+         * Add a block which is already stored in the segment's file, such as
+         * one copied there from another run; the run's record count is
+         * whatever it was created with.
+         */
+        void stored(long offset, int compressedLength, int length) {
+            blocks.add(new Block(null, offset, compressedLength, length));
+        }
+
+        /**
+         * Pass each block, still compressed, to a consumer, in order.
+         *
+         * @param c A consumer
+         * @throws IOException If a block cannot be read from the segment's file
+         */
+        void blocks(BlockConsumer c) throws IOException {
+            FileChannel channel = null;
+            byte[] compressed = null;
+            try {
+                for (Block b : blocks) {
+                    byte[] in = b.data;
+                    if (in == null) {
+                        if (channel == null) {
+                            channel = FileChannel.open(segment.file, StandardOpenOption.READ);
+                        }
+                        if (compressed == null || compressed.length < b.compressedLength) {
+                            compressed = new byte[b.compressedLength];
+                        }
+                        in = b.read(channel, compressed);
+                    }
+                    c.block(in, b.compressedLength, b.length);
+                }
+            } finally {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+
+        /**
+         * Get the id of a column, or -1 if it has not been written yet.
+         */
+        int columnId(String name) {
+            Integer result = columns.get(name);
+            return result == null ? -1 : result;
+        }
+
+        int defineColumn(String name) {
+            int result = columns.size();
+            columns.put(name, result);
+            return result;
+        }
+
+        /**
+         * Give up the blocks once they have been output, returning their memory
+         * to the budget.
+         */
+        void discard() {
+            for (Block b : blocks) {
+                if (b.data != null) {
+                    segment.memoryLeft.addAndGet(b.compressedLength);
+                }
+            }
+            blocks.clear();
+        }
+    }
+
+    /**
+     * One worker's compressor, and its spill file if it needs one.
+     */
+    static final class Segment implements AutoCloseable {
+
+        private final AtomicLong memoryLeft;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] out = new byte[128 * 1024];
+        private Path file;
+        private FileChannel channel;
+        private long fileSize;
+        private boolean open = true;
+
+        Segment(AtomicLong memoryLeft) {
+            this.memoryLeft = memoryLeft;
+        }
+
+        /**
+         * Create a segment for runs whose blocks are all stored in an
+         * existing file, which it only reads.
+         *
+         * @param file The file
+         */
+        Segment(Path file) {
+            this(new AtomicLong());
+            this.file = file;
+        }
+
+        private Block store(byte[] bytes, int length) throws IOException {
+            deflater.reset();
+            deflater.setInput(bytes, 0, length);
+            deflater.finish();
+            int compressed = 0;
+            while (!deflater.finished()) {
+                if (compressed == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                compressed += deflater.deflate(out, compressed, out.length - compressed);
+            }
+            if (memoryLeft.addAndGet(-compressed) >= 0) {
+                return new Block(Arrays.copyOf(out, compressed), 0, compressed, length);
+            }
+            memoryLeft.addAndGet(compressed);
+            if (channel == null) {
+                file = FileUtils.newTempFile("ccd-temp");
+                channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(out, 0, compressed);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            Block result = new Block(null, fileSize, compressed, length);
+            fileSize += compressed;
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (open) {
+                open = false;
+                deflater.end();
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
     }
 }
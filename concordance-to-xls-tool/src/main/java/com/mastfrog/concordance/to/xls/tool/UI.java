@@ -18,8 +18,8 @@
  */
 package com.mastfrog.concordance.to.xls.tool;
 
+import com.mastfrog.concordance.parser.FilterExpression;
 import com.mastfrog.concurrent.ConcurrentLinkedList;
-import com.mastfrog.function.state.Int;
 import com.mastfrog.swing.FlexEmptyBorder;
 import com.mastfrog.swing.layout.VerticalFlowLayout;
 import com.mastfrog.util.collections.AtomicLinkedQueue;
@@ -45,9 +45,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiConsumer;
 import java.util.function.BooleanSupplier;
@@ -59,6 +61,7 @@ import javax.swing.BorderFactory;
 import javax.swing.BoundedRangeModel;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JEditorPane;
 import javax.swing.JFileChooser;
@@ -69,8 +72,10 @@ import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.UIManager;
 import javax.swing.WindowConstants;
 import javax.swing.border.TitledBorder;
@@ -176,8 +181,17 @@ public class UI {
         mainUI.setMinimumSize(new Dimension(600, 600));
         bottom.add(actionButton);
         JButton cancelButton = new JButton("Cancel");
+        // Set while a run is in progress, so cancel stops it instead of exiting
+        AtomicReference<Cancellation> running = new AtomicReference<>();
         cancelButton.addActionListener(ae -> {
-            System.exit(0);
+            Cancellation cancel = running.get();
+            if (cancel == null) {
+                System.exit(0);
+            } else if (!cancel.isCancelled()) {
+                cancel.cancel();
+                cancelButton.setText("Cancelling...");
+                cancelButton.setEnabled(false);
+            }
         });
         bottom.add(cancelButton);
 
@@ -216,7 +230,7 @@ public class UI {
         head.setFont(bold.deriveFont(head.getFont().getSize2D() + 2));
         head.setBorder(BorderFactory.createMatteBorder(0, 0, 1, 0, bl));
         top.add(head, BorderLayout.NORTH);
-        JLabel instructions = new JLabel("Choose directories to scan for .opt/.dat file pairs, choose settings, then click Go to generate.");
+        JLabel instructions = new JLabel("Choose directories or zip archives to scan for .opt/.dat file pairs, choose settings, then click Go to generate.");
         instructions.setFont(instructions.getFont().deriveFont(Font.PLAIN).deriveFont(instructions.getFont().getSize() - 1));
         instructions.setBorder(BorderFactory.createEmptyBorder(12, 0, 5, 12));
         top.add(instructions, BorderLayout.CENTER);
@@ -238,16 +252,16 @@ public class UI {
         JButton browse = new JButton("Browse");
 
         JFileChooser chooser = new JFileChooser();
-        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
         chooser.setFileFilter(new FileFilter() {
             @Override
             public boolean accept(File file) {
-                return file.isDirectory();
+                return file.isDirectory() || file.getName().toLowerCase().endsWith(".zip");
             }
 
             @Override
             public String getDescription() {
-                return "Folders";
+                return "Folders and Zip Archives";
             }
         });
         if (root != null && Files.exists(root)) {
@@ -298,6 +312,74 @@ public class UI {
         con.gridx = 0;
         con.gridy++;
 
+        JLabel memoryLabel = new JLabel("Memory");
+        JCheckBox offHeap = new JCheckBox("Keep the .opt dictionary off-heap");
+        offHeap.setToolTipText("<html>Store the .opt lookup table in memory-mapped temp files instead of "
+                + "Java's heap<br>(for productions with hundreds of millions of images)");
+        offHeap.setSelected(settings.offHeap());
+        memoryLabel.setLabelFor(offHeap);
+        JCheckBox cacheOpt = new JCheckBox("Cache parsed .opt files between runs");
+        cacheOpt.setToolTipText("<html>Save the parsed contents of each .opt file in " + settings.optCacheDir()
+                + "<br>so exporting the same production again only re-reads volumes that changed");
+        cacheOpt.setSelected(settings.cacheOptFiles());
+        inner.add(memoryLabel, con);
+        con.gridx++;
+        con.gridwidth = 2;
+        inner.add(offHeap, con);
+        con.gridx += 2;
+        inner.add(cacheOpt, con);
+        con.gridwidth = 1;
+        con.gridx = 0;
+        con.gridy++;
+
+        JSpinner spillMemory = new JSpinner(new SpinnerNumberModel(settings.spillMemory(), 0, 65536, 64));
+        spillMemory.setToolTipText("<html>Records are compressed and kept in memory up to this size; "
+                + "beyond it<br>they are written to temp files");
+        JPanel spillPanel = new JPanel(new FlowLayout(FlowLayout.LEADING, 5, 0));
+        spillPanel.add(new JLabel("Keep up to"));
+        spillPanel.add(spillMemory);
+        spillPanel.add(new JLabel("MB of records in memory before using temp files"));
+        con.gridx++;
+        con.gridwidth = 4;
+        inner.add(spillPanel, con);
+        con.gridwidth = 1;
+        con.gridx = 0;
+        con.gridy++;
+
+        JLabel resumeLabel = new JLabel("Recovery");
+        JCheckBox resumable = new JCheckBox("Save progress so an interrupted conversion can pick up where it left off");
+        resumable.setToolTipText("<html>Save each volume to a journal beside the output as it is finished;"
+                + "<br>running the same conversion again after a crash only processes the volumes that were not");
+        resumable.setSelected(settings.resumable());
+        resumeLabel.setLabelFor(resumable);
+        inner.add(resumeLabel, con);
+        con.gridx++;
+        con.gridwidth = 4;
+        inner.add(resumable, con);
+        con.gridwidth = 1;
+        con.gridx = 0;
+        con.gridy++;
+
+        JLabel threadsLabel = new JLabel("Threads");
+        JSpinner ioThreads = new JSpinner(new SpinnerNumberModel(settings.ioThreads(), 1, 256, 1));
+        ioThreads.setToolTipText("How many .opt files to read at once");
+        JSpinner cpuThreads = new JSpinner(new SpinnerNumberModel(settings.cpuThreads(), 1, 256, 1));
+        cpuThreads.setToolTipText("<html>How many .dat files to process at once, and how many "
+                + "threads to split very large ones across");
+        threadsLabel.setLabelFor(ioThreads);
+        JPanel threadsPanel = new JPanel(new FlowLayout(FlowLayout.LEADING, 5, 0));
+        threadsPanel.add(new JLabel("Reading .opt files"));
+        threadsPanel.add(ioThreads);
+        threadsPanel.add(new JLabel("Processing .dat files"));
+        threadsPanel.add(cpuThreads);
+        inner.add(threadsLabel, con);
+        con.gridx++;
+        con.gridwidth = 4;
+        inner.add(threadsPanel, con);
+        con.gridwidth = 1;
+        con.gridx = 0;
+        con.gridy++;
+
         JTextField outputField = focusSelectAll(new JTextField());
 
         JLabel outLabel = new JLabel("Output File Type");
@@ -424,8 +506,40 @@ public class UI {
         con.gridwidth = 1;
         intrs.setLabelFor(filtersArea);
         intrs2.setLabelFor(filtersArea);
+
+        JTextField expressionField = focusSelectAll(new JTextField(settings.filters().expression()));
+        expressionField.setColumns(100);
+        expressionField.getDocument().addDocumentListener(docRun(onChange));
+        JLabel expressionLabel = new JLabel("Only Include");
+        expressionLabel.setDisplayedMnemonic('I');
+        expressionLabel.setDisplayedMnemonicIndex(5);
+        expressionLabel.setLabelFor(expressionField);
+        inner.add(expressionLabel, con);
+        con.gridx++;
+        con.gridwidth = totalW - 1;
+        inner.add(expressionField, con);
+        JLabel intrs3 = new JLabel("Optional expression records must match, e.g. Custodian = \"Smith\" AND NOT FileExt IN (tmp, db)");
+        intrs3.setFont(intrs.getFont());
+        intrs3.setLabelFor(expressionField);
+        con.gridy++;
+        inner.add(intrs3, con);
+        con.gridy++;
+        con.gridx = 0;
+        con.gridwidth = 1;
         con.weighty = oldwy;
 
+        validators.add(() -> {
+            try {
+                FilterExpression.parse(expressionField.getText());
+                return true;
+            } catch (IllegalArgumentException ex) {
+                if (expressionField.getText().isBlank()) {
+                    return true;
+                }
+                status.setText(ex.getMessage());
+                return false;
+            }
+        });
         validators.add(() -> {
             String out = outputField.getText();
             if (out.isBlank()) {
@@ -480,14 +594,19 @@ public class UI {
                 }
                 instructions.setVisible(false);
                 settings.filters().setFilters(filtersArea.getText().trim());
+                settings.filters().setExpression(expressionField.getText());
                 settings.filters().save();
 
                 settings.format(currFormat.get());
                 settings.scan(recur.isSelected());
+                settings.offHeap(offHeap.isSelected());
+                settings.cacheOptFiles(cacheOpt.isSelected());
+                settings.resumable(resumable.isSelected());
+                settings.ioThreads((Integer) ioThreads.getValue());
+                settings.cpuThreads((Integer) cpuThreads.getValue());
+                settings.spillMemory((Integer) spillMemory.getValue());
                 settings.root(Paths.get(scanFolderField.getText()));
 
-                Int counter = settings.filters().counter();
-
                 mainUI.remove(inner);
                 JPanel progressContainer = new JPanel(new VerticalFlowLayout(5));
 
@@ -501,6 +620,8 @@ public class UI {
                 mainUI.repaint();
 
                 BiConsumer<Boolean, String> onLastDone = (Boolean aborted, String msg) -> {
+                    running.set(null);
+                    cancelButton.setEnabled(true);
                     cancelButton.setText("Exit");
                     cancelButton.setMnemonic('x');
                     cancelButton.setDisplayedMnemonicIndex(1);
@@ -513,7 +634,10 @@ public class UI {
                         String txt = "Wrote " + settings.output();
                         if (!settings.filters().isEmpty()) {
                             txt += "\n\n";
-                            txt += counter.getAsInt() + " records excluded by the filters " + settings.filters();
+                            txt += settings.filters().excludedCount() + " records excluded by the filters " + settings.filters();
+                            for (Map.Entry<String, Long> e : settings.filters().hitCounts().entrySet()) {
+                                txt += "\n    " + e.getKey() + ": " + e.getValue();
+                            }
                         }
                         jta.setText(txt);
                         jta.setEditable(false);
@@ -590,12 +714,19 @@ public class UI {
                 }
                 ProgressConsumer prog = new PC(problemsConsumer).replanning();
                 ConcordanceToXlsTool tool = new ConcordanceToXlsTool(settings);
-                try {
-                    tool.launch(prog);
-                } catch (IOException ex) {
-                    Logger.getLogger(UI.class.getName()).log(Level.SEVERE, null, ex);
-                    prog.onError(ex.getMessage() + "", ex, true);
-                }
+                Cancellation cancel = new Cancellation();
+                running.set(cancel);
+                // Scanning a large tree can take a while, and should be cancellable
+                Thread launcher = new Thread(() -> {
+                    try {
+                        tool.launch(prog, cancel);
+                    } catch (IOException ex) {
+                        Logger.getLogger(UI.class.getName()).log(Level.SEVERE, null, ex);
+                        prog.onError(ex.getMessage() + "", ex, true);
+                    }
+                }, "Launcher");
+                launcher.setDaemon(true);
+                launcher.start();
             }
         });
 
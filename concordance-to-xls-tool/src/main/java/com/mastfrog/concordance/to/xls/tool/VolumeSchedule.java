@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2022 Tim Boudreau
+ *
+ * This file is part of the concordance-to-xls tool.
+ *
+ * The concordance-to-xls tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.concordance.to.xls.tool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Tracks which volumes' .dat files can be processed: each depends on its own
+ * .opt file and those of the volumes numbered immediately before and after it
+ * (which is where most references to other volumes point), so .dat processing
+ * overlaps with loading the rest of the .opt files.
+ * <p>
+ * Work is handed out longest first, using file size as the estimate, so one
+ * huge volume is not left running alone at the end: ready .dat files largest
+ * first, and .opt files in order of the largest .dat file waiting on them,
+ * then their own size.
+ * </p><p>
+ * When rows are written out as volumes finish, in output order, nothing can be
+ * written until the first volume is done, and every volume finished before its
+ * turn waits in TempItems, spilling to disk once it is over budget. So then
+ * work is handed out in output order instead: ready .dat files earliest
+ * first, and .opt files in order of the earliest .dat file waiting on them.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class VolumeSchedule {
+
+    // .dat file -> the .opt files it is still waiting for
+    private final Map<FilePair, Set<FilePair>> waitingFor = new HashMap<>();
+    // .opt file -> the .dat files waiting for it
+    private final Map<FilePair, List<FilePair>> dependents = new HashMap<>();
+    private final Map<FilePair, Long> datSizes = new HashMap<>();
+    private final PriorityQueue<FilePair> ready;
+    private final Deque<FilePair> optFiles;
+    private int untaken;
+    private boolean aborted;
+
+    /**
+     * Create a schedule.
+     *
+     * @param pairs The volumes
+     * @param outputOrder Each volume's place in the output, if they should be
+     * processed in that order, or null to process the largest first
+     */
+    VolumeSchedule(Collection<FilePair> pairs, Map<FilePair, Integer> outputOrder) {
+        Map<ItemKey, FilePair> byVolume = new HashMap<>();
+        Map<FilePair, Long> optSizes = new HashMap<>();
+        for (FilePair pair : pairs) {
+            datSizes.put(pair, size(pair.datFile()));
+            optSizes.put(pair, size(pair.optFile()));
+            ItemKey key = volumeKey(pair);
+            if (key != null) {
+                byVolume.put(key, pair);
+            }
+        }
+        for (FilePair pair : pairs) {
+            Set<FilePair> deps = new HashSet<>(3);
+            deps.add(pair);
+            ItemKey key = volumeKey(pair);
+            if (key != null) {
+                key.prev().map(byVolume::get).ifPresent(deps::add);
+                key.next().map(byVolume::get).ifPresent(deps::add);
+            }
+            for (FilePair dep : deps) {
+                dependents.computeIfAbsent(dep, d -> new ArrayList<>(3)).add(pair);
+            }
+            waitingFor.put(pair, deps);
+        }
+        untaken = pairs.size();
+        List<FilePair> opts = new ArrayList<>(pairs);
+        if (outputOrder == null) {
+            ready = new PriorityQueue<>(Math.max(1, pairs.size()),
+                    Comparator.comparing(datSizes::get, Comparator.reverseOrder()));
+            Map<FilePair, Long> unblocks = new HashMap<>();
+            dependents.forEach((opt, dats) -> {
+                unblocks.put(opt, dats.stream().mapToLong(datSizes::get).max().orElse(0));
+            });
+            opts.sort(Comparator.comparing((FilePair p) -> unblocks.getOrDefault(p, 0L))
+                    .thenComparing(optSizes::get).reversed());
+        } else {
+            ready = new PriorityQueue<>(Math.max(1, pairs.size()), Comparator.comparing(outputOrder::get));
+            Map<FilePair, Integer> unblocks = new HashMap<>();
+            dependents.forEach((opt, dats) -> {
+                unblocks.put(opt, dats.stream().mapToInt(outputOrder::get).min().orElse(Integer.MAX_VALUE));
+            });
+            opts.sort(Comparator.comparing((FilePair p) -> unblocks.getOrDefault(p, Integer.MAX_VALUE))
+                    .thenComparing(optSizes::get, Comparator.reverseOrder()));
+        }
+        optFiles = new ArrayDeque<>(opts);
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException ex) {
+            // Scheduling is only a heuristic - a missing file fails later
+            return 0;
+        }
+    }
+
+    /**
+     * Take the next .opt file to load.
+     *
+     * @return A pair, or null if all have been taken
+     */
+    synchronized FilePair takeOptFile() {
+        return optFiles.poll();
+    }
+
+    private static ItemKey volumeKey(FilePair pair) {
+        try {
+            return pair.volumeKey();
+        } catch (IllegalArgumentException ex) {
+            // Not a numbered volume - it only depends on its own .opt file
+            return null;
+        }
+    }
+
+    /**
+     * Stop handing out work, waking any thread waiting for a .dat file, once
+     * the run cannot produce output.
+     */
+    synchronized void abort() {
+        aborted = true;
+        optFiles.clear();
+        notifyAll();
+    }
+
+    /**
+     * Note that a .opt file has been read (or failed), which may make some
+     * .dat files ready.
+     */
+    synchronized void optLoaded(FilePair pair) {
+        List<FilePair> waiting = dependents.remove(pair);
+        if (waiting != null) {
+            for (FilePair dat : waiting) {
+                Set<FilePair> deps = waitingFor.get(dat);
+                deps.remove(pair);
+                if (deps.isEmpty()) {
+                    waitingFor.remove(dat);
+                    ready.add(dat);
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Take the next .dat file which is ready, waiting for one if need be;
+     * only call this once every .opt file has been taken, or while a thread
+     * which will go on taking them is loading one, or it can wait forever.
+     *
+     * @return A pair, or null if all have been taken
+     * @throws InterruptedException If interrupted
+     */
+    synchronized FilePair takeDatFile() throws InterruptedException {
+        while (ready.isEmpty()) {
+            if (untaken == 0 || aborted) {
+                return null;
+            }
+            wait();
+        }
+        if (aborted) {
+            return null;
+        }
+        untaken--;
+        return ready.poll();
+    }
+}
@@ -18,17 +18,12 @@
  */
 package com.mastfrog.concordance.to.xls.tool;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.mastfrog.concordance.to.xls.tool.ProgressConsumer.ProgressTask;
 import com.mastfrog.function.state.Int;
 import com.mastfrog.util.strings.Escaper;
 import com.mastfrog.util.strings.Strings;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import static java.nio.file.StandardOpenOption.CREATE;
@@ -38,9 +33,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.function.Function;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.CellType;
@@ -58,12 +50,12 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbook;
  */
 public class XLSGenerator {
 
-    private final ObjectMapper mapper;
     private final TempItems items;
     private final ConversionSettings settings;
+    private final Cancellation cancel;
 
-    XLSGenerator(ObjectMapper mapper, TempItems items, ConversionSettings settings) {
-        this.mapper = mapper;
+    XLSGenerator(TempItems items, ConversionSettings settings, Cancellation cancel) {
+        this.cancel = cancel;
         this.items = items;
         this.settings = settings;
     }
@@ -100,31 +92,15 @@ public class XLSGenerator {
             return syntheticHeadings.contains(s);
         }
 
-        void eachHeading(HC str) {
-            for (int i = 0; i < headings.length; i++) {
-                str.withHeading(i, headings[i]);
-            }
-        }
-    }
-
-    interface HC {
-
-        void withHeading(int ix, String heading);
     }
 
+    /**
+     * Write the spreadsheet; CSV and JSON are written as records are
+     * processed, by DirectOutput.
+     */
     public void generate(Set<String> headings, Set<String> syntheticHeadings,
             ProgressTask task) throws IOException {
-        switch (settings.format()) {
-            case XLSX:
-                generateXlsx(headings, syntheticHeadings, task);
-                break;
-            case CSV:
-                generateCsv(headings, syntheticHeadings, task);
-                break;
-            case JSON:
-                generateJson(headings, syntheticHeadings, task);
-                break;
-        }
+        generateXlsx(headings, syntheticHeadings, task);
     }
 
     static class CSVEscaper implements Escaper {
@@ -140,106 +116,20 @@ public class XLSGenerator {
         }
     }
 
-    public void generateJson(Set<String> headings, Set<String> syntheticHeadings,
-            ProgressTask task) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.enable(SerializationFeature.INDENT_OUTPUT);
-        task.status("Saving JSON file to disk...");
-        Path file = settings.output();
-        HeadingLookup hl = new HeadingLookup(headings, syntheticHeadings);
-        int total = items.total;
-        Int read = Int.create();
-        int synthTotal = total + 1;
-        try ( OutputStream out = Files.newOutputStream(file, CREATE, WRITE, TRUNCATE_EXISTING)) {
-            try ( PrintStream print = new PrintStream(out, true, UTF_8)) {
-                print.print('[');
-                items.read(map -> {
-                    if (map.isEmpty()) {
-                        return;
-                    }
-
-                    int index = read.increment();
-                    task.progress(index, synthTotal);
-                    if (index != 0) {
-                        print.print(",");
-                    }
-                    try {
-                        String m = mapper.writeValueAsString(map);
-                        print.println(m);
-                    } catch (JsonProcessingException ex) {
-                        Logger.getLogger(XLSGenerator.class.getName()).log(Level.SEVERE, null, ex);
-                        task.done(true, ex.getMessage());
-                    }
+    private static final CSVEscaper CSV_ESCAPER = new CSVEscaper();
 
-                    if (index % 100 == 0) {
-                        task.status("Generated " + index + " / " + total + " rows.");
-                    }
-                });
-                print.println(']');
-            }
+    static String csvCell(String in) {
+        String result = Strings.escape(in, CSV_ESCAPER);
+        if (Strings.contains(',', result) || Strings.contains('"', result)) {
+            result = '"' + result + '"';
         }
-        task.status("Saved " + file);
-    }
-
-    public void generateCsv(Set<String> headings, Set<String> syntheticHeadings,
-            ProgressTask task) throws IOException {
-        task.status("Saving CSV file to disk...");
-        Path file = settings.output();
-        HeadingLookup hl = new HeadingLookup(headings, syntheticHeadings);
-        int total = items.total;
-        Int read = Int.create();
-        CSVEscaper csvE = new CSVEscaper();
-
-        Function<String, String> escape = in -> {
-            String result = Strings.escape(in, csvE);
-            if (Strings.contains(',', result) || Strings.contains('"', result)) {
-                result = '"' + result + '"';
-            }
-            return result;
-        };
-
-        try ( OutputStream out = Files.newOutputStream(file, CREATE, WRITE, TRUNCATE_EXISTING)) {
-            try ( PrintStream print = new PrintStream(out, true, UTF_8)) {
-                // Write all the headings
-                StringBuilder sb = new StringBuilder(2_048);
-                hl.eachHeading((ix, h) -> {
-                    if (ix > 0) {
-                        sb.append(',');
-                    }
-                    sb.append(escape.apply(h));
-                });
-                print.println(sb);
-                int synthTotal = total + 1;
-                items.read(map -> {
-                    if (map.isEmpty()) {
-                        return;
-                    }
-                    sb.setLength(0);
-                    int index = read.increment();
-                    task.progress(index, synthTotal);
-                    hl.eachHeading((ix, h) -> {
-                        if (ix > 0) {
-                            sb.append(',');
-                        }
-                        String val = map.get(h);
-                        if (val != null) {
-                            sb.append(escape.apply(val));
-                        }
-                    });
-                    print.println(sb);
-                    if (index % 100 == 0) {
-                        task.status("Generated " + index + " / " + total + " rows.");
-                    }
-                });
-            }
-        }
-        task.status("Saved " + file);
+        return result;
     }
 
     public void generateXlsx(Set<String> headings, Set<String> syntheticHeadings, ProgressTask task) throws IOException {
         task.status("Saving XLSX file to disk...");
         HeadingLookup hl = new HeadingLookup(headings, syntheticHeadings);
-        int total = items.total;
+        int total = items.total();
         Int read = Int.create();
         Workbook workbook = new XSSFWorkbook();
         CreationHelper createHelper = workbook.getCreationHelper();
@@ -272,6 +162,7 @@ public class XLSGenerator {
         }
         int synthTotal = total + 1;
         items.read(map -> {
+            cancel.check();
             int index = read.increment();
             task.progress(index, synthTotal);
             Row row = sheet.createRow(currRow.increment());
@@ -296,6 +187,7 @@ public class XLSGenerator {
             }
         });
         task.progress(total, synthTotal);
+        cancel.check();
         task.status("Saving output file to disk...");
         Path file = settings.output();
         try ( OutputStream out = Files.newOutputStream(file, CREATE, WRITE, TRUNCATE_EXISTING)) {